@@ -1,54 +1,97 @@
-// WormSim API.
-
-// Steering neurons.
-#define ASEL 0
-#define ASER 1
-#define AIYL 2
-#define AIYR 3
-#define AIZL 4
-#define AIZR 5
-#define SMBD 6
-#define SMBV 7
-
-// Steering synapses.
-#define ASEL0 0
-#define ASEL1 1
-#define ASER0 2
-#define ASER1 3
-#define AIYL0 4
-#define AIYR0 5
-#define AIZL0 6
-#define AIZL1 7
-#define AIZR0 8
-#define AIZR1 9
-
-// Initialize.
-int init();
-
-// Set steering neuron synapse weight.
-void set_steering_synapse_weight(int synapse, double weight);
-
-// Step simulation with salt sensor stimulu.
-void step(double salt_stimulus);
-void stepback();
-
-// Get neuron activations.
-double get_steering_activation(int neuron);
-double get_dorsal_motor_activation(int segment);
-double get_ventral_motor_activation(int segment);
-
-// Get muscle properties.
-double get_dorsal_muscle_activation(int segment);
-double get_ventral_muscle_activation(int segment);
-
-// Get body point.
-#define NSEG 48
-#define NBAR (NSEG+1)
-double get_body_point(int index);
-double get_segment_angle(int segment);
-
-// Terminate.
-void term();
-
-// Override SMB muscle amplifiers.
-void override_smb_muscle_amplifiers(double dorsal, double ventral);
+// WormSim API.
+
+// Steering neurons.
+#define ASEL 0
+#define ASER 1
+#define AIYL 2
+#define AIYR 3
+#define AIZL 4
+#define AIZR 5
+#define SMBD 6
+#define SMBV 7
+
+// Steering synapses.
+#define ASEL0 0
+#define ASEL1 1
+#define ASER0 2
+#define ASER1 3
+#define AIYL0 4
+#define AIYR0 5
+#define AIZL0 6
+#define AIZL1 7
+#define AIZR0 8
+#define AIZR1 9
+
+// Simulator instance.
+struct Wormsim;
+
+// Create and destroy simulator instance.
+Wormsim *create();
+void destroy(Wormsim *sim);
+
+// Linear solvers for body mechanics integration.
+#define DENSE_SOLVER 0
+#define BAND_SOLVER  1
+
+// Initialize.
+// The analytic Jacobian replaces IDA's difference quotient approximation.
+int init(Wormsim *sim, int linear_solver, bool analytic_jacobian);
+
+// Set steering neuron synapse weight.
+void set_steering_synapse_weight(Wormsim *sim, int synapse, double weight);
+
+// Step simulation with salt sensor stimulu.
+void step(Wormsim *sim, double salt_stimulus);
+void stepback(Wormsim *sim);
+
+// Step simulation n times, writing body points for each step to trajectory (n * NBAR * 3).
+void step_n(Wormsim *sim, int n, double salt_stimulus, double *trajectory);
+
+// Get neuron activations.
+double get_steering_activation(Wormsim *sim, int neuron);
+double get_dorsal_motor_activation(Wormsim *sim, int segment);
+double get_ventral_motor_activation(Wormsim *sim, int segment);
+
+// Get muscle properties.
+double get_dorsal_muscle_activation(Wormsim *sim, int segment);
+double get_ventral_muscle_activation(Wormsim *sim, int segment);
+
+// Get body point.
+#define NSEG 48
+#define NBAR (NSEG+1)
+double get_body_point(Wormsim *sim, int index);
+double get_segment_angle(Wormsim *sim, int segment);
+
+// Check analytic Jacobian against difference quotients, returning maximum relative error.
+double check_jacobian(Wormsim *sim);
+
+// Shared buffer layout (offsets in doubles).
+// The simulator publishes into a registered buffer after init and each step.
+#define SHARED_BODY                       0
+#define SHARED_SEGMENT_ANGLES             (SHARED_BODY + NBAR * 3)
+#define SHARED_STEERING_ACTIVATIONS       (SHARED_SEGMENT_ANGLES + 12)
+#define SHARED_DORSAL_MOTOR_ACTIVATIONS   (SHARED_STEERING_ACTIVATIONS + 8)
+#define SHARED_VENTRAL_MOTOR_ACTIVATIONS  (SHARED_DORSAL_MOTOR_ACTIVATIONS + NSEG)
+#define SHARED_DORSAL_MUSCLE_ACTIVATIONS  (SHARED_VENTRAL_MOTOR_ACTIVATIONS + NSEG)
+#define SHARED_VENTRAL_MUSCLE_ACTIVATIONS (SHARED_DORSAL_MUSCLE_ACTIVATIONS + 12)
+#define SHARED_SIZE                       (SHARED_VENTRAL_MUSCLE_ACTIVATIONS + 12)
+
+// Register shared buffer of SHARED_SIZE doubles, or NULL to stop publishing.
+void set_shared_buffer(Wormsim *sim, double *buffer);
+
+// Simulator initialized and not terminated?
+int running(Wormsim *sim);
+
+// Snapshot and restore body, neuron, muscle and steering state, excluding
+// steering synapse weights and SMB muscle amplifier overrides.
+// Snapshots are opaque byte arrays of snapshot_size() bytes.
+// Both return 0 if the simulator is not running, and restore if the buffer is not a snapshot.
+int snapshot_size();
+int snapshot(Wormsim *sim, unsigned char *buffer);
+int restore(Wormsim *sim, const unsigned char *buffer, int size);
+
+// Terminate.
+void term(Wormsim *sim);
+
+// Override SMB muscle amplifiers.
+void override_smb_muscle_amplifiers(Wormsim *sim, double dorsal, double ventral);
@@ -1,133 +1,264 @@
 #include <jni.h>
 #include <math.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <map>
+#include <mutex>
 #include "wormsim.h"
 
-extern "C" 
-{
-    JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_init(JNIEnv * env, jobject obj);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_setSteeringSynapseWeights(JNIEnv * env, jobject obj, jdoubleArray weights);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_step(JNIEnv * env, jobject obj, jdouble salt_stimulus);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_stepback(JNIEnv * env, jobject obj);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getSteeringActivations(JNIEnv * env, jobject obj, jdoubleArray activations);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getDorsalMotorActivations(JNIEnv * env, jobject obj, jdoubleArray activations);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getVentralMotorActivations(JNIEnv * env, jobject obj, jdoubleArray activations);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getDorsalMuscleActivations(JNIEnv * env, jobject obj, jdoubleArray activations);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getVentralMuscleActivations(JNIEnv * env, jobject obj, jdoubleArray activations);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getBody(JNIEnv * env, jobject obj, jdoubleArray body);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getSegmentAngles(JNIEnv * env, jobject obj, jdoubleArray angles);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_terminate(JNIEnv * env, jobject obj);
-	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_overrideSMBmuscleAmplifiers(JNIEnv * env, jobject obj, jdouble dorsal, jdouble ventral);
+extern "C"
+{
+    JNIEXPORT jlong JNICALL Java_openworm_morphognosis_wormworx_Wormsim_create(JNIEnv * env, jobject obj);
+    JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_init(JNIEnv * env, jobject obj, jlong handle, jint linearSolver, jboolean analyticJacobian);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_setSteeringSynapseWeights(JNIEnv * env, jobject obj, jlong handle, jdoubleArray weights);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_step(JNIEnv * env, jobject obj, jlong handle, jdouble salt_stimulus);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_stepback(JNIEnv * env, jobject obj, jlong handle);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_stepN(JNIEnv * env, jobject obj, jlong handle, jint n, jdouble salt_stimulus, jdoubleArray trajectory);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getSteeringActivations(JNIEnv * env, jobject obj, jlong handle, jdoubleArray activations);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getDorsalMotorActivations(JNIEnv * env, jobject obj, jlong handle, jdoubleArray activations);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getVentralMotorActivations(JNIEnv * env, jobject obj, jlong handle, jdoubleArray activations);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getDorsalMuscleActivations(JNIEnv * env, jobject obj, jlong handle, jdoubleArray activations);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getVentralMuscleActivations(JNIEnv * env, jobject obj, jlong handle, jdoubleArray activations);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getBody(JNIEnv * env, jobject obj, jlong handle, jdoubleArray body);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getSegmentAngles(JNIEnv * env, jobject obj, jlong handle, jdoubleArray angles);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_setSharedBuffer(JNIEnv * env, jobject obj, jlong handle, jobject buffer);
+	JNIEXPORT jbyteArray JNICALL Java_openworm_morphognosis_wormworx_Wormsim_snapshot(JNIEnv * env, jobject obj, jlong handle);
+	JNIEXPORT jboolean JNICALL Java_openworm_morphognosis_wormworx_Wormsim_restore(JNIEnv * env, jobject obj, jlong handle, jbyteArray snapshot);
+	JNIEXPORT jdouble JNICALL Java_openworm_morphognosis_wormworx_Wormsim_checkJacobian(JNIEnv * env, jobject obj, jlong handle);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_terminate(JNIEnv * env, jobject obj, jlong handle);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_destroy(JNIEnv * env, jobject obj, jlong handle);
+	JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_overrideSMBmuscleAmplifiers(JNIEnv * env, jobject obj, jlong handle, jdouble dorsal, jdouble ventral);
 };
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_init(JNIEnv * env, jobject obj)
+// Simulator instance from handle.
+static inline Wormsim *instance(jlong handle)
+{
+    return (Wormsim *)(intptr_t)handle;
+}
+
+// Global references to registered shared buffers by handle, keeping each buffer
+// alive while the simulator writes to it.
+static std::map<jlong, jobject> sharedBuffers;
+static std::mutex               sharedBuffersLock;
+
+// Replace global reference to shared buffer of handle, releasing any previous one.
+static void setSharedBufferRef(JNIEnv * env, jlong handle, jobject buffer)
+{
+    std::lock_guard<std::mutex> lock(sharedBuffersLock);
+    std::map<jlong, jobject>::iterator i = sharedBuffers.find(handle);
+    if (i != sharedBuffers.end())
+    {
+        env->DeleteGlobalRef(i->second);
+        sharedBuffers.erase(i);
+    }
+    if (buffer != NULL)
+    {
+        sharedBuffers[handle] = env->NewGlobalRef(buffer);
+    }
+}
+
+JNIEXPORT jlong JNICALL Java_openworm_morphognosis_wormworx_Wormsim_create(JNIEnv * env, jobject obj)
 {
-    init();
+    return (jlong)(intptr_t)create();
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_setSteeringSynapseWeights(JNIEnv * env, jobject obj, jdoubleArray weights)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_init(JNIEnv * env, jobject obj, jlong handle, jint linearSolver, jboolean analyticJacobian)
 {
+    init(instance(handle), linearSolver, analyticJacobian == JNI_TRUE);
+}
+
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_setSteeringSynapseWeights(JNIEnv * env, jobject obj, jlong handle, jdoubleArray weights)
+{
+    Wormsim *sim = instance(handle);
     jsize len = env->GetArrayLength(weights);
     jdouble *weightsf = env->GetDoubleArrayElements(weights, 0);
     for (int i = 0; i < len; i++)
     {
-        set_steering_synapse_weight(i, weightsf[i]);
+        set_steering_synapse_weight(sim, i, weightsf[i]);
     }
     env->ReleaseDoubleArrayElements(weights, weightsf, 0);
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_step(JNIEnv * env, jobject obj, jdouble salt_stimulus)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_step(JNIEnv * env, jobject obj, jlong handle, jdouble salt_stimulus)
 {
-    step(salt_stimulus);
+    step(instance(handle), salt_stimulus);
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_stepback(JNIEnv * env, jobject obj)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_stepback(JNIEnv * env, jobject obj, jlong handle)
 {
-    stepback();
+    stepback(instance(handle));
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getSteeringActivations(JNIEnv * env, jobject obj, jdoubleArray activations)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_stepN(JNIEnv * env, jobject obj, jlong handle, jint n, jdouble salt_stimulus, jdoubleArray trajectory)
 {
+    if (n < 0)
+    {
+        env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "negative step count");
+        return;
+    }
+    if ((trajectory != NULL) && ((jlong)env->GetArrayLength(trajectory) < (jlong)n * NBAR * 3))
+    {
+        env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "trajectory shorter than steps * body length");
+        return;
+    }
+    if (trajectory == NULL)
+    {
+        step_n(instance(handle), n, salt_stimulus, NULL);
+        return;
+    }
+    jdouble *trajectoryf = env->GetDoubleArrayElements(trajectory, 0);
+    step_n(instance(handle), n, salt_stimulus, trajectoryf);
+    env->ReleaseDoubleArrayElements(trajectory, trajectoryf, 0);
+}
+
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getSteeringActivations(JNIEnv * env, jobject obj, jlong handle, jdoubleArray activations)
+{
+    Wormsim *sim = instance(handle);
     jsize len = env->GetArrayLength(activations);
     jdouble *activationsf = env->GetDoubleArrayElements(activations, 0);
     for (int i = 0; i < len; i++)
     {
-        activationsf[i] = get_steering_activation(i);
+        activationsf[i] = get_steering_activation(sim, i);
     }
     env->ReleaseDoubleArrayElements(activations, activationsf, 0);
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getDorsalMotorActivations(JNIEnv * env, jobject obj, jdoubleArray activations)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getDorsalMotorActivations(JNIEnv * env, jobject obj, jlong handle, jdoubleArray activations)
 {
+    Wormsim *sim = instance(handle);
     jsize len = env->GetArrayLength(activations);
     jdouble *activationsf = env->GetDoubleArrayElements(activations, 0);
     for (int i = 0; i < len; i++)
     {
-        activationsf[i] = get_dorsal_motor_activation(i);
+        activationsf[i] = get_dorsal_motor_activation(sim, i);
     }
     env->ReleaseDoubleArrayElements(activations, activationsf, 0);
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getVentralMotorActivations(JNIEnv * env, jobject obj, jdoubleArray activations)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getVentralMotorActivations(JNIEnv * env, jobject obj, jlong handle, jdoubleArray activations)
 {
+    Wormsim *sim = instance(handle);
     jsize len = env->GetArrayLength(activations);
     jdouble *activationsf = env->GetDoubleArrayElements(activations, 0);
     for (int i = 0; i < len; i++)
     {
-        activationsf[i] = get_ventral_motor_activation(i);
+        activationsf[i] = get_ventral_motor_activation(sim, i);
     }
     env->ReleaseDoubleArrayElements(activations, activationsf, 0);
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getDorsalMuscleActivations(JNIEnv * env, jobject obj, jdoubleArray activations)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getDorsalMuscleActivations(JNIEnv * env, jobject obj, jlong handle, jdoubleArray activations)
 {
+    Wormsim *sim = instance(handle);
     jsize len = env->GetArrayLength(activations);
     jdouble *activationsf = env->GetDoubleArrayElements(activations, 0);
     for (int i = 0; i < len; i++)
     {
-        activationsf[i] = get_dorsal_muscle_activation(i);
+        activationsf[i] = get_dorsal_muscle_activation(sim, i);
     }
     env->ReleaseDoubleArrayElements(activations, activationsf, 0);
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getVentralMuscleActivations(JNIEnv * env, jobject obj, jdoubleArray activations)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getVentralMuscleActivations(JNIEnv * env, jobject obj, jlong handle, jdoubleArray activations)
 {
+    Wormsim *sim = instance(handle);
     jsize len = env->GetArrayLength(activations);
     jdouble *activationsf = env->GetDoubleArrayElements(activations, 0);
     for (int i = 0; i < len; i++)
     {
-        activationsf[i] = get_ventral_muscle_activation(i);
+        activationsf[i] = get_ventral_muscle_activation(sim, i);
     }
     env->ReleaseDoubleArrayElements(activations, activationsf, 0);
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getBody(JNIEnv * env, jobject obj, jdoubleArray body)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getBody(JNIEnv * env, jobject obj, jlong handle, jdoubleArray body)
 {
+    Wormsim *sim = instance(handle);
     jdouble *bodyf = env->GetDoubleArrayElements(body, 0);
     for (int i = 0; i < NBAR; ++i)
     {
-        bodyf[i * 3] = get_body_point(i * 3);
-        bodyf[i * 3 + 1] = get_body_point(i * 3 + 1);
-        bodyf[i * 3 + 2] = get_body_point(i * 3 + 2);
+        bodyf[i * 3] = get_body_point(sim, i * 3);
+        bodyf[i * 3 + 1] = get_body_point(sim, i * 3 + 1);
+        bodyf[i * 3 + 2] = get_body_point(sim, i * 3 + 2);
     }
     env->ReleaseDoubleArrayElements(body, bodyf, 0);
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getSegmentAngles(JNIEnv * env, jobject obj, jdoubleArray angles)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_getSegmentAngles(JNIEnv * env, jobject obj, jlong handle, jdoubleArray angles)
 {
+    Wormsim *sim = instance(handle);
     jdouble *anglesf = env->GetDoubleArrayElements(angles, 0);
     for (int i = 0; i < 12; ++i)
     {
-        anglesf[i] = get_segment_angle(i);
+        anglesf[i] = get_segment_angle(sim, i);
     }
     env->ReleaseDoubleArrayElements(angles, anglesf, 0);
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_terminate(JNIEnv * env, jobject obj)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_setSharedBuffer(JNIEnv * env, jobject obj, jlong handle, jobject buffer)
+{
+    double *bufferf = NULL;
+    if (buffer != NULL)
+    {
+        bufferf = (double *)env->GetDirectBufferAddress(buffer);
+        if (bufferf == NULL || env->GetDirectBufferCapacity(buffer) < (jlong)(SHARED_SIZE * sizeof(double)))
+        {
+            char message[100];
+            snprintf(message, sizeof(message), "shared buffer must be direct with capacity for %d doubles", SHARED_SIZE);
+            env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), message);
+            return;
+        }
+    }
+    set_shared_buffer(instance(handle), bufferf);
+    setSharedBufferRef(env, handle, buffer);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_openworm_morphognosis_wormworx_Wormsim_snapshot(JNIEnv * env, jobject obj, jlong handle)
+{
+    if (!running(instance(handle)))
+    {
+        env->ThrowNew(env->FindClass("java/lang/IllegalStateException"), "wormsim not initialized or terminated");
+        return NULL;
+    }
+    jsize len = snapshot_size();
+    jbyteArray snapshotArray = env->NewByteArray(len);
+    jbyte *snapshotf = env->GetByteArrayElements(snapshotArray, 0);
+    snapshot(instance(handle), (unsigned char *)snapshotf);
+    env->ReleaseByteArrayElements(snapshotArray, snapshotf, 0);
+    return snapshotArray;
+}
+
+JNIEXPORT jboolean JNICALL Java_openworm_morphognosis_wormworx_Wormsim_restore(JNIEnv * env, jobject obj, jlong handle, jbyteArray snapshot)
+{
+    if (!running(instance(handle)))
+    {
+        env->ThrowNew(env->FindClass("java/lang/IllegalStateException"), "wormsim not initialized or terminated");
+        return JNI_FALSE;
+    }
+    jsize len = env->GetArrayLength(snapshot);
+    jbyte *snapshotf = env->GetByteArrayElements(snapshot, 0);
+    int result = restore(instance(handle), (const unsigned char *)snapshotf, len);
+    env->ReleaseByteArrayElements(snapshot, snapshotf, JNI_ABORT);
+    return result ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jdouble JNICALL Java_openworm_morphognosis_wormworx_Wormsim_checkJacobian(JNIEnv * env, jobject obj, jlong handle)
+{
+    return check_jacobian(instance(handle));
+}
+
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_terminate(JNIEnv * env, jobject obj, jlong handle)
+{
+    term(instance(handle));
+}
+
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_destroy(JNIEnv * env, jobject obj, jlong handle)
 {
-    term();
+    destroy(instance(handle));
+    setSharedBufferRef(env, handle, NULL);
 }
 
-JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_overrideSMBmuscleAmplifiers(JNIEnv * env, jobject obj, jdouble dorsal, jdouble ventral)
+JNIEXPORT void JNICALL Java_openworm_morphognosis_wormworx_Wormsim_overrideSMBmuscleAmplifiers(JNIEnv * env, jobject obj, jlong handle, jdouble dorsal, jdouble ventral)
 {
-	override_smb_muscle_amplifiers(dorsal, ventral);
+	override_smb_muscle_amplifiers(instance(handle), dorsal, ventral);
 }
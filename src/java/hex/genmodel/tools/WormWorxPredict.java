@@ -0,0 +1,670 @@
+package hex.genmodel.tools;
+
+import au.com.bytecode.opencsv.CSVParser;
+import hex.ModelCategory;
+import hex.genmodel.GenModel;
+import hex.genmodel.MojoModel;
+import hex.genmodel.easy.EasyPredictModelWrapper;
+import hex.genmodel.easy.RowData;
+import hex.genmodel.easy.prediction.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Adapted from H2O PredictCsv.java.
+ * <p></p>
+ * Scores CSV files with one or more models (e.g. head and body), streaming each
+ * input through a bounded reader, parallel scoring workers and an ordered writer.
+ * Also predicts single rows for the WormWorx H2O driver.
+ * <p></p>
+ * See the top-of-tree master version of this file <a href="https://github.com/h2oai/h2o-3/blob/master/h2o-genmodel/src/main/java/hex/genmodel/tools/PredictCsv.java" target="_blank">here on github</a>.
+ */
+public class WormWorxPredict {
+  private boolean useDecimalOutput = false;
+  public char separator = ',';   // separator used to delimite input datasets
+  public boolean setInvNumNA = false;    // enable .setConvertInvalidNumbersToNa(true)
+  public int threads = Runtime.getRuntime().availableProcessors();  // scoring workers
+  public int batchSize = 64;   // rows per batch passed between reader, workers and writer
+  // Model instance
+  private EasyPredictModelWrapper model;
+  private ModelCategory modelCategory;
+  // Direct numeric scoring: model column feature indexes (-1 if absent), reused row and predictions.
+  private GenModel genModel;
+  private int[] featureIndexes;
+  private double[] scoreRow;
+  private double[] scorePreds;
+  // Scoring jobs.
+  private ArrayList<Job> jobs = new ArrayList<Job>();
+
+  // Scoring job: model to load (0: pojo, 1: mojo, 2: model) and input and output files.
+  private static class Job {
+    String modelName;
+    int loadType;
+    String inputCSVFileName;
+    String outputCSVFileName;
+  }
+
+  // Batch of input rows and their formatted predictions, recycled through the pipeline.
+  private static class Batch {
+    long sequence;
+    int firstLine;
+    String[] lines;
+    int numRows;
+    StringBuilder output = new StringBuilder();
+    Exception error;
+    int errorLine;
+
+    Batch(int size) {
+      lines = new String[size];
+    }
+  }
+
+  // Pipeline end marker.
+  private static final Batch END = new Batch(0);
+
+  public static void main(String[] args) {
+    // Parse command line arguments
+    WormWorxPredict main = new WormWorxPredict();
+    main.parseArgs(args);
+
+    // Run the main program
+    try {
+      for (Job job : main.jobs) {
+        main.run(job);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(2);
+    }
+    // Predictions were successfully generated.
+    System.exit(0);
+  }
+
+  private static RowData formatDataRow(String[] splitLine, String[] inputColumnNames) {
+    // Assemble the input values for the row.
+    RowData row = new RowData();
+    fillDataRow(row, splitLine, inputColumnNames);
+    return row;
+  }
+
+  // Fill reused row with the input values of a line.
+  private static void fillDataRow(RowData row, String[] splitLine, String[] inputColumnNames) {
+    row.clear();
+    int maxI = Math.min(inputColumnNames.length, splitLine.length);
+    for (int i = 0; i < maxI; i++) {
+      String cellData = splitLine[i];
+
+      switch (cellData) {
+        case "":
+        case "NA":
+        case "N/A":
+        case "-":
+          continue;
+        default:
+          row.put(inputColumnNames[i], cellData);
+      }
+    }
+  }
+
+  private String myDoubleToString(double d) {
+    if (Double.isNaN(d)) {
+      return "NA";
+    }
+    return useDecimalOutput? Double.toString(d) : Double.toHexString(d);
+  }
+
+  // Write output column names, returning the last autoencoder comma index.
+  private int writeHeader(EasyPredictModelWrapper model, BufferedWriter output) throws Exception {
+    ModelCategory category = model.getModelCategory();
+    int lastCommaAutoEn = -1; // for deeplearning model in autoencoder mode
+
+    switch (category) {
+      case AutoEncoder:
+        String[] cnames =  model.m.getNames();
+        int numCats = model.domainMap.size();
+        int numNums = model.m.nfeatures()-numCats;
+        String[][] domainValues = model.m.getDomainValues();
+        int lastCatIdx = numCats-1;
+
+        for (int index = 0; index <= lastCatIdx  ; index++) { // add names for categorical columns
+          String[] tdomains = domainValues[index];
+          int tdomainLen = tdomains.length-1;
+          for (int index2 = 0; index2 <= tdomainLen; index2++ ) {
+            lastCommaAutoEn++;
+            String temp = "reconstr_"+tdomains[index2];
+            output.write(temp);
+            output.write(',');
+          }
+
+          lastCommaAutoEn++;
+          String temp = "reconstr_" + cnames[index] + ".missing(NA)"; // add missing(NA) column as last column name
+          output.write(temp);
+          if (numNums > 0 || index < lastCatIdx)
+            output.write(',');
+        }
+
+        int lastComma = cnames.length-1;
+        for (int index = numCats; index < cnames.length; index++) {  // add the numerical column names
+          lastCommaAutoEn++;
+          String temp = "reconstr_"+cnames[index];
+          output.write(temp);
+
+          if (index < lastComma )
+            output.write(',');
+        }
+        break;
+      case Binomial:
+      case Multinomial:
+        output.write("predict");
+        String[] responseDomainValues = model.getResponseDomainValues();
+        for (String s : responseDomainValues) {
+          output.write(",");
+          output.write(s);
+        }
+        break;
+
+      case Clustering:
+        output.write("cluster");
+        break;
+
+      case Regression:
+        output.write("predict");
+        break;
+
+      default:
+        throw new Exception("Unknown model category " + category);
+    }
+    output.write("\n");
+    return lastCommaAutoEn;
+  }
+
+  // Predict a row, appending its formatted predictions to output.
+  private void formatPrediction(EasyPredictModelWrapper model, RowData row, int lastCommaAutoEn,
+                                StringBuilder output) throws Exception {
+    ModelCategory category = model.getModelCategory();
+    switch (category) {
+      case AutoEncoder: { // write the expanded predictions out
+        AutoEncoderModelPrediction p = model.predictAutoEncoder(row);
+        for (int i=0; i < p.reconstructed.length; i++) {
+          output.append(myDoubleToString(p.reconstructed[i]));
+
+          if (i < lastCommaAutoEn)
+            output.append(',');
+        }
+        break;
+      }
+      case Binomial: {
+        BinomialModelPrediction p = model.predictBinomial(row);
+        output.append(p.label);
+        output.append(",");
+        for (int i = 0; i < p.classProbabilities.length; i++) {
+          if (i > 0) {
+            output.append(",");
+          }
+          output.append(myDoubleToString(p.classProbabilities[i]));
+        }
+        break;
+      }
+
+      case Multinomial: {
+        MultinomialModelPrediction p = model.predictMultinomial(row);
+        output.append(p.label);
+        output.append(",");
+        for (int i = 0; i < p.classProbabilities.length; i++) {
+          if (i > 0) {
+            output.append(",");
+          }
+          output.append(myDoubleToString(p.classProbabilities[i]));
+        }
+        break;
+      }
+
+      case Clustering: {
+        ClusteringModelPrediction p = model.predictClustering(row);
+        output.append(myDoubleToString(p.cluster));
+        break;
+      }
+
+      case Regression: {
+        RegressionModelPrediction p = model.predictRegression(row);
+        output.append(myDoubleToString(p.value));
+        break;
+      }
+
+      default:
+        throw new Exception("Unknown model category " + category);
+    }
+    output.append('\n');
+  }
+
+  // Score a job's input file into its output file.
+  // A reader thread fills recycled batches of lines, worker threads each with
+  // their own model instance parse and score them, and this thread writes the scored
+  // batches in input order. The number of batches in flight is bounded.
+  private void run(Job job) throws Exception {
+    final int numThreads = Math.max(1, threads);
+    final EasyPredictModelWrapper[] models = new EasyPredictModelWrapper[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      models[i] = createWrapper(job.modelName, job.loadType);
+    }
+    final BufferedReader reader = new BufferedReader(new FileReader(job.inputCSVFileName));
+    BufferedWriter output = new BufferedWriter(new FileWriter(job.outputCSVFileName));
+    final int lastCommaAutoEn = writeHeader(models[0], output);
+    long startTime = System.nanoTime();
+    long numRows = 0;
+
+    try {
+      //Reader in the column names here.
+      // Lines are parsed separately, so quoted values may not span lines.
+      String header = reader.readLine();
+      if (header == null)  // file empty, throw an error
+        throw new Exception("Input dataset file is empty!");
+      final String[] inputColumnNames = new CSVParser(separator).parseLine(header);
+
+      // Pipeline queues: free batches, batches to score and scored batches.
+      final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(numThreads * 2 + 2);
+      final BlockingQueue<Batch> pending = new ArrayBlockingQueue<Batch>(numThreads * 2 + 3);
+      final BlockingQueue<Batch> scored = new ArrayBlockingQueue<Batch>(numThreads * 3 + 4);
+      for (int i = 0; i < numThreads * 2 + 2; i++) {
+        free.add(new Batch(batchSize));
+      }
+      final AtomicBoolean aborted = new AtomicBoolean();
+      final Exception[] readError = new Exception[1];
+
+      // Reader.
+      Thread readerThread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            long sequence = 0;
+            int lineNum = 1;    // count number of lines of input dataset file parsed
+            boolean eof = false;
+            while (!eof) {
+              Batch batch = free.take();
+              batch.sequence = sequence++;
+              batch.firstLine = lineNum;
+              batch.numRows = 0;
+              batch.error = null;
+              String line;
+              while (batch.numRows < batch.lines.length && (line = reader.readLine()) != null) {
+                batch.lines[batch.numRows++] = line;
+              }
+              lineNum += batch.numRows;
+              eof = batch.numRows < batch.lines.length || aborted.get();
+              pending.put(batch);
+            }
+          } catch (Exception e) {
+            readError[0] = e;
+          } finally {
+            try {
+              pending.put(END);
+            } catch (InterruptedException e) {
+            }
+          }
+        }
+      });
+
+      // Workers.
+      Thread[] workers = new Thread[numThreads];
+      for (int i = 0; i < numThreads; i++) {
+        final EasyPredictModelWrapper workerModel = models[i];
+        workers[i] = new Thread(new Runnable() {
+          public void run() {
+            CSVParser parser = new CSVParser(separator);
+            RowData row = new RowData();
+            try {
+              Batch batch;
+              while ((batch = pending.take()) != END) {
+                batch.output.setLength(0);
+                for (int j = 0; j < batch.numRows; j++) {
+                  try {
+                    // Parse the CSV line.  Don't handle quoted commas.  This isn't a parser test.
+                    fillDataRow(row, parser.parseLine(batch.lines[j]), inputColumnNames);
+                    // Do the prediction.
+                    formatPrediction(workerModel, row, lastCommaAutoEn, batch.output);
+                  } catch (Exception e) {
+                    batch.error = e;
+                    batch.errorLine = batch.firstLine + j;
+                    batch.numRows = j;
+                    break;
+                  }
+                }
+                scored.put(batch);
+              }
+              pending.put(END);
+              scored.put(END);
+            } catch (InterruptedException e) {
+            }
+          }
+        });
+      }
+      readerThread.start();
+      for (Thread worker : workers) {
+        worker.start();
+      }
+
+      // Write scored batches in input order until all workers have finished.
+      HashMap<Long, Batch> waiting = new HashMap<Long, Batch>();
+      long next = 0;
+      int finished = 0;
+      long reportTime = startTime;
+      Batch error = null;
+      while (finished < numThreads) {
+        Batch batch = scored.take();
+        if (batch == END) {
+          finished++;
+          continue;
+        }
+        waiting.put(batch.sequence, batch);
+        while ((batch = waiting.remove(next)) != null) {
+          next++;
+          if (error == null) {
+            // Emit the results to the output file.
+            output.append(batch.output);
+            numRows += batch.numRows;
+            if (batch.error != null) {
+              error = batch;
+              aborted.set(true);
+            }
+          }
+          for (int j = 0; j < batch.lines.length; j++) {
+            batch.lines[j] = null;
+          }
+          free.put(batch);
+        }
+        long time = System.nanoTime();
+        if (time - reportTime > 10000000000L) {
+          reportTime = time;
+          System.out.println("Scored " + numRows + " rows (" + rowsPerSecond(numRows, time - startTime) + " rows/sec)");
+        }
+      }
+      readerThread.join();
+      if (error != null) {
+        output.flush();
+        System.out.println("Caught exception on line " + error.errorLine);
+        System.out.println("");
+        error.error.printStackTrace();
+        System.exit(1);
+      }
+      if (readError[0] != null) {
+        throw readError[0];
+      }
+    }
+    finally {
+      // Clean up.
+      output.close();
+      reader.close();
+    }
+    long time = System.nanoTime() - startTime;
+    System.out.println("Scored " + numRows + " rows of " + job.inputCSVFileName + " in " +
+                       (time / 1000000) + " ms (" + rowsPerSecond(numRows, time) + " rows/sec) with " +
+                       numThreads + " threads");
+  }
+
+  private static long rowsPerSecond(long rows, long nanos) {
+    return nanos > 0 ? (long)(rows * 1e9 / nanos) : 0;
+  }
+
+  // Initialize for predict method.
+  // Return response labels.
+  public String[] inputColumnNames;
+  public String[] initPredict(String modelfile)
+  {
+	  try {
+		loadModel(modelfile);
+		modelCategory = model.getModelCategory();		
+	} catch (Exception e) {
+		System.err.println("Cannot initialize for H2O prediction: " + e.getMessage());
+		return null;
+	} 
+	return model.getResponseDomainValues();
+  }
+
+  // Predict a feature vector.
+  public float[] predict(String metamorphCsv) throws Exception {
+	  
+	  float[] probabilities = null;
+	  
+	  // Create input column names?
+	  String[] splitLine = metamorphCsv.split(",");
+	  if (inputColumnNames == null)
+	  {
+		  inputColumnNames = new String[splitLine.length];
+          for (int i = 0, j = inputColumnNames.length - 1; i < j; i++)
+          {
+              inputColumnNames[i] = "c" + i;
+          }
+          inputColumnNames[inputColumnNames.length - 1] = "response";
+	  }
+	  
+        // Parse the CSV line.
+        RowData row = formatDataRow(metamorphCsv.split(","), inputColumnNames);
+        
+        // Do the prediction.
+        switch (modelCategory) {
+          case AutoEncoder: {  
+            AutoEncoderModelPrediction p = model.predictAutoEncoder(row);
+            probabilities = new float[p.reconstructed.length];
+            for (int i=0; i < p.reconstructed.length; i++) {
+              probabilities[i] = (float)p.reconstructed[i];
+            }
+            break;
+          }
+          
+          case Binomial: {     	  
+            BinomialModelPrediction p = model.predictBinomial(row);
+            probabilities = new float[p.classProbabilities.length];
+            for (int i = 0; i < p.classProbabilities.length; i++) {
+              probabilities[i] = (float)p.classProbabilities[i];
+            }
+            break;
+          }
+
+          case Multinomial: {
+            MultinomialModelPrediction p = model.predictMultinomial(row);
+            probabilities = new float[p.classProbabilities.length];
+            for (int i = 0; i < p.classProbabilities.length; i++) {
+                probabilities[i] = (float)p.classProbabilities[i];
+            }
+            break;
+          }
+
+          default:
+            System.err.println("Unknown model category " + modelCategory);
+        }
+        
+        return probabilities;
+	  }
+
+  // Predict a numeric feature vector, in csv column order, into out.
+  // The model is scored directly without string conversion or allocation.
+  public void predict(double[] features, float[] out) throws Exception {
+    initScoring();
+    score(features, 0, features.length, out, 0, out.length);
+  }
+
+  // Predict a batch of count feature vectors of numFeatures each, stored
+  // consecutively in csv column order, into out, numOutputs() per vector.
+  public void predict(double[] features, int numFeatures, int count, float[] out) throws Exception {
+    initScoring();
+    int numOutputs = numOutputs();
+    for (int row = 0; row < count; row++) {
+      score(features, row * numFeatures, numFeatures, out, row * numOutputs, numOutputs);
+    }
+  }
+
+  // Number of outputs: class probabilities, or reconstructed values.
+  public int numOutputs() {
+    int n = genModel.getPredsSize();
+    return (modelCategory == ModelCategory.AutoEncoder) ? n : n - 1;
+  }
+
+  // Map model columns to csv feature indexes.
+  private void initScoring() {
+    if (featureIndexes != null) {
+      return;
+    }
+    String[] names = genModel.getNames();
+    featureIndexes = new int[genModel.nfeatures()];
+    for (int i = 0; i < featureIndexes.length; i++) {
+      featureIndexes[i] = -1;
+      if (names[i].startsWith("c") && genModel.getDomainValues(i) == null) {
+        try {
+          featureIndexes[i] = Integer.parseInt(names[i].substring(1));
+        } catch (NumberFormatException e) {
+        }
+      }
+    }
+    scoreRow = new double[featureIndexes.length];
+    scorePreds = new double[genModel.getPredsSize()];
+  }
+
+  // Score features at offset into out at outOffset.
+  private void score(double[] features, int offset, int numFeatures,
+                     float[] out, int outOffset, int outLength) throws Exception {
+    // Fill row in model column order: absent features are missing.
+    for (int i = 0; i < featureIndexes.length; i++) {
+      int j = featureIndexes[i];
+      scoreRow[i] = (j >= 0 && j < numFeatures) ? features[offset + j] : Double.NaN;
+    }
+    genModel.score0(scoreRow, scorePreds);
+
+    switch (modelCategory) {
+      case AutoEncoder:
+        for (int i = 0; i < scorePreds.length && i < outLength; i++) {
+          out[outOffset + i] = (float)scorePreds[i];
+        }
+        break;
+
+      case Binomial:
+      case Multinomial:
+        // Predictions are the label followed by the class probabilities.
+        for (int i = 1; i < scorePreds.length && i <= outLength; i++) {
+          out[outOffset + i - 1] = (float)scorePreds[i];
+        }
+        break;
+
+      default:
+        throw new Exception("Unknown model category " + modelCategory);
+    }
+  }
+
+  public void loadModel(String modelName) throws Exception {
+    try {
+      loadMojo(modelName);
+    } catch (IOException e) {
+      loadPojo(modelName);  // may throw an exception too
+    }
+  }
+
+  private void loadPojo(String className) throws Exception {
+    genModel = loadGenModel(className, 0);
+    featureIndexes = null;
+    model = createWrapper(genModel);
+  }
+
+  private void loadMojo(String modelName) throws IOException {
+    genModel = MojoModel.load(modelName);
+    featureIndexes = null;
+    model = createWrapper(genModel);
+  }
+
+  // Load a model (0: pojo, 1: mojo, 2: mojo or else pojo).
+  private static GenModel loadGenModel(String modelName, int loadType) throws Exception {
+    if (loadType != 0) {
+      try {
+        return MojoModel.load(modelName);
+      } catch (IOException e) {
+        if (loadType == 1) throw e;
+      }
+    }
+    return (GenModel) Class.forName(modelName).getDeclaredConstructor().newInstance();
+  }
+
+  private EasyPredictModelWrapper createWrapper(GenModel genModel) {
+    return new EasyPredictModelWrapper(new EasyPredictModelWrapper.Config().setModel(genModel).setConvertUnknownCategoricalLevelsToNa(true).setConvertInvalidNumbersToNa(setInvNumNA));
+  }
+
+  private EasyPredictModelWrapper createWrapper(String modelName, int loadType) throws Exception {
+    return createWrapper(loadGenModel(modelName, loadType));
+  }
+
+  private static void usage() {
+    System.out.println("");
+    System.out.println("Usage:  java [...java args...] hex.genmodel.tools.WormWorxPredict --mojo mojoName");
+    System.out.println("             --pojo pojoName --input inputFile --output outputFile [--mojo mojoName2 --input inputFile2 --output outputFile2 ...]");
+    System.out.println("             --separator sepStr --decimal --setConvertInvalidNum --threads threads --batch rows");
+    System.out.println("");
+    System.out.println("     --mojo    Name of the zip file containing model's MOJO.");
+    System.out.println("     --pojo    Name of the java class containing the model's POJO. Either this ");
+    System.out.println("               parameter or --model must be specified.");
+    System.out.println("     --input   text file containing the test data set to score with the preceding model.");
+    System.out.println("     --output  Name of the output CSV file with computed predictions.");
+    System.out.println("     --separator Separator to be used in input file containing test data set.");
+    System.out.println("     --decimal Use decimal numbers in the output (default is to use hexademical).");
+    System.out.println("     --setConvertInvalidNum Will call .setConvertInvalidNumbersToNa(true) when loading models.");
+    System.out.println("     --threads Number of scoring threads (default is the number of processors).");
+    System.out.println("     --batch   Rows per scoring batch (default is 64).");
+    System.out.println("");
+    System.exit(1);
+  }
+
+  private void parseArgs(String[] args) {
+    try {
+      Job job = null;
+      for (int i = 0; i < args.length; i++) {
+        String s = args[i];
+        if (s.equals("--header")) continue;
+        if (s.equals("--decimal"))
+          useDecimalOutput = true;
+        else if (s.equals("--setConvertInvalidNum"))
+          setInvNumNA=true;
+        else {
+          i++;
+          if (i >= args.length) usage();
+          String sarg = args[i];
+          switch (s) {
+            case "--model":
+            case "--mojo":
+            case "--pojo":
+              job = new Job();
+              job.modelName = sarg;
+              job.loadType = s.equals("--model") ? 2 : (s.equals("--mojo") ? 1 : 0);
+              jobs.add(job);
+              break;
+            case "--input":
+              if (job == null) usage();
+              job.inputCSVFileName = sarg;
+              break;
+            case "--output":
+              if (job == null) usage();
+              job.outputCSVFileName = sarg;
+              break;
+            case "--separator": separator=sarg.charAt(sarg.length()-1); break;
+            case "--threads": threads = Integer.parseInt(sarg); break;
+            case "--batch": batchSize = Integer.parseInt(sarg); break;
+            default:
+              System.out.println("ERROR: Unknown command line argument: " + s);
+              usage();
+          }
+        }
+      }
+      if (jobs.isEmpty() || threads < 1 || batchSize < 1) usage();
+      for (Job j : jobs) {
+        if (j.inputCSVFileName == null || j.outputCSVFileName == null) usage();
+        createWrapper(j.modelName, j.loadType);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      usage();
+    }
+  }
+}
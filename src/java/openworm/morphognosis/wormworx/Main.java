@@ -55,6 +55,20 @@ public class Main
       "     [-foodColor <red | green | blue> (default=red) |\n\t<color1>.<steps>.<color2> (transition from color1 to color2 after specified steps)]\n" +
       "     [-driver <metamorphDB | metamorphWekaNN | metamorphH2ONN | wormsim> (worm driver: default=wormsim)]\n" +
       "     [-wormsimSMBmuscleAmplifierOverrides <dorsal> <ventral> (defaults=1.0)]\n" +
+      "     [-wormsimLinearSolver <dense | band> (default=band)]\n" +
+      "     [-wormsimJacobian <analytic | differenceQuotient> (default=analytic)]\n" +
+      "     [-morphognosticUpdate <full | incremental | summedArea> (default=incremental)]\n" +
+      "     [-validateMorphognosticUpdate (check against full update)]\n" +
+      "     [-metamorphSearch <linear | index | approximate> (metamorphDB nearest morphognostic search: default=index)]\n" +
+      "     [-metamorphNNinference <weka | flat> (metamorphWekaNN inference by Weka or by exported flat network: default=flat)]\n" +
+      "     [-parallelScanThreshold <rows> (metamorphDB linear search rows to scan in parallel: default=" + MetamorphStore.PARALLEL_SCAN_THRESHOLD + ")]\n" +
+      "     [-approximateRecallInterval <queries> (sample approximate search recall every interval queries: default=0 (off))]\n" +
+      "     [-maxMetamorphs <head and body metamorphs each> (default=unbounded)]\n" +
+      "     [-maxMetamorphBytes <head and body metamorph bytes each> (default=unbounded)]\n" +
+      "     [-metamorphEviction <lru | lfu | oldest> (metamorph eviction when full: least recently matched, least frequently matched, or oldest: default=lru)]\n" +
+      "     [-metamorphDB <file name prefix> (persistent memory-mapped head and body metamorph databases: metamorphs are not saved in the worm file; unbounded, so not with metamorph size, eviction, quantization or sharing options)]\n" +
+      "     [-metamorphQuantization <none | float16 | int8> (metamorph density storage: default=none)]\n" +
+      "     [-shareNeighborhoods (share identical metamorph neighborhood densities)]\n" +
       "     [-numNeighborhoods <quantity> (default=" + Morphognostic.DEFAULT_NUM_NEIGHBORHOODS + ")]\n" +
       "     [-neighborhoodInitialDimension <quantity> (default=" + Morphognostic.DEFAULT_NEIGHBORHOOD_INITIAL_DIMENSION + ")]\n" +
       "     [-neighborhoodDimensionStride <quantity> (default=" + Morphognostic.DEFAULT_NEIGHBORHOOD_DIMENSION_STRIDE + ")]\n" +
@@ -71,6 +85,20 @@ public class Main
       "     [-foodColor <red | green | blue> (default=red) |\n\t<color1>.<steps>.<color2> (transition from color1 to color2 after specified steps)]\n" +
       "     [-driver <metamorphDB | metamorphNN | wormsim> (default=wormsim)]\n" +
       "     [-wormsimSMBmuscleAmplifierOverrides <dorsal> <ventral> (defaults=1.0)]\n" +
+      "     [-wormsimLinearSolver <dense | band> (default=band)]\n" +
+      "     [-wormsimJacobian <analytic | differenceQuotient> (default=analytic)]\n" +
+      "     [-morphognosticUpdate <full | incremental | summedArea> (default=incremental)]\n" +
+      "     [-validateMorphognosticUpdate (check against full update)]\n" +
+      "     [-metamorphSearch <linear | index | approximate> (metamorphDB nearest morphognostic search: default=index)]\n" +
+      "     [-metamorphNNinference <weka | flat> (metamorphWekaNN inference by Weka or by exported flat network: default=flat)]\n" +
+      "     [-parallelScanThreshold <rows> (metamorphDB linear search rows to scan in parallel: default=" + MetamorphStore.PARALLEL_SCAN_THRESHOLD + ")]\n" +
+      "     [-approximateRecallInterval <queries> (sample approximate search recall every interval queries: default=0 (off))]\n" +
+      "     [-maxMetamorphs <head and body metamorphs each> (default=unbounded)]\n" +
+      "     [-maxMetamorphBytes <head and body metamorph bytes each> (default=unbounded)]\n" +
+      "     [-metamorphEviction <lru | lfu | oldest> (metamorph eviction when full: least recently matched, least frequently matched, or oldest: default=lru)]\n" +
+      "     [-metamorphDB <file name prefix> (persistent memory-mapped head and body metamorph databases: metamorphs are not saved in the worm file; unbounded, so not with metamorph size, eviction, quantization or sharing options)]\n" +
+      "     [-metamorphQuantization <none | float16 | int8> (metamorph density storage: default=none)]\n" +
+      "     [-shareNeighborhoods (share identical metamorph neighborhood densities)]\n" +
       "     [-randomSeed <random number seed>]\n" +
       "     [-save <file name>]\n" +
       "     [-saveNNdatasets]\n" +
@@ -434,6 +462,323 @@ public class Main
             }
             continue;
          }
+         if (args[i].equals("-wormsimLinearSolver"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid wormsimLinearSolver option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("dense"))
+            {
+               Worm.WORMSIM_LINEAR_SOLVER = Wormsim.DENSE_SOLVER;
+            }
+            else if (args[i].equals("band"))
+            {
+               Worm.WORMSIM_LINEAR_SOLVER = Wormsim.BAND_SOLVER;
+            }
+            else
+            {
+               System.err.println("Invalid wormsimLinearSolver option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-morphognosticUpdate"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid morphognosticUpdate option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("full"))
+            {
+               Worm.MORPHOGNOSTIC_UPDATE = Worm.FULL_MORPHOGNOSTIC_UPDATE;
+            }
+            else if (args[i].equals("incremental"))
+            {
+               Worm.MORPHOGNOSTIC_UPDATE = Worm.INCREMENTAL_MORPHOGNOSTIC_UPDATE;
+            }
+            else if (args[i].equals("summedArea"))
+            {
+               Worm.MORPHOGNOSTIC_UPDATE = Worm.SUMMED_AREA_MORPHOGNOSTIC_UPDATE;
+            }
+            else
+            {
+               System.err.println("Invalid morphognosticUpdate option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-parallelScanThreshold"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid parallelScanThreshold option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               MetamorphStore.PARALLEL_SCAN_THRESHOLD = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid parallelScanThreshold option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (MetamorphStore.PARALLEL_SCAN_THRESHOLD < 0)
+            {
+               System.err.println("Invalid parallelScanThreshold option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-approximateRecallInterval"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid approximateRecallInterval option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               Worm.APPROXIMATE_RECALL_INTERVAL = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid approximateRecallInterval option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (Worm.APPROXIMATE_RECALL_INTERVAL < 0)
+            {
+               System.err.println("Invalid approximateRecallInterval option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-maxMetamorphs"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid maxMetamorphs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               MetamorphStore.MAX_ROWS = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid maxMetamorphs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (MetamorphStore.MAX_ROWS <= 0)
+            {
+               System.err.println("Invalid maxMetamorphs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-maxMetamorphBytes"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid maxMetamorphBytes option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               MetamorphStore.MAX_BYTES = Long.parseLong(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid maxMetamorphBytes option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (MetamorphStore.MAX_BYTES <= 0)
+            {
+               System.err.println("Invalid maxMetamorphBytes option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-metamorphEviction"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphEviction option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("lru"))
+            {
+               MetamorphStore.EVICTION = MetamorphStore.LRU_EVICTION;
+            }
+            else if (args[i].equals("lfu"))
+            {
+               MetamorphStore.EVICTION = MetamorphStore.LFU_EVICTION;
+            }
+            else if (args[i].equals("oldest"))
+            {
+               MetamorphStore.EVICTION = MetamorphStore.OLDEST_EVICTION;
+            }
+            else
+            {
+               System.err.println("Invalid metamorphEviction option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-metamorphDB"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphDB option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            Worm.METAMORPH_DB = args[i];
+            continue;
+         }
+         if (args[i].equals("-metamorphQuantization"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphQuantization option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("none"))
+            {
+               MetamorphStore.QUANTIZATION = MetamorphStore.NO_QUANTIZATION;
+            }
+            else if (args[i].equals("float16"))
+            {
+               MetamorphStore.QUANTIZATION = MetamorphStore.FLOAT16_QUANTIZATION;
+            }
+            else if (args[i].equals("int8"))
+            {
+               MetamorphStore.QUANTIZATION = MetamorphStore.INT8_QUANTIZATION;
+            }
+            else
+            {
+               System.err.println("Invalid metamorphQuantization option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-shareNeighborhoods"))
+         {
+            MetamorphStore.SHARE_NEIGHBORHOODS = true;
+            continue;
+         }
+         if (args[i].equals("-metamorphNNinference"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphNNinference option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("weka"))
+            {
+               Worm.METAMORPH_NN_INFERENCE = Worm.WEKA_NN_INFERENCE;
+            }
+            else if (args[i].equals("flat"))
+            {
+               Worm.METAMORPH_NN_INFERENCE = Worm.FLAT_NN_INFERENCE;
+            }
+            else
+            {
+               System.err.println("Invalid metamorphNNinference option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-metamorphSearch"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphSearch option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("linear"))
+            {
+               Worm.METAMORPH_SEARCH = Worm.LINEAR_METAMORPH_SEARCH;
+            }
+            else if (args[i].equals("index"))
+            {
+               Worm.METAMORPH_SEARCH = Worm.INDEX_METAMORPH_SEARCH;
+            }
+            else if (args[i].equals("approximate"))
+            {
+               Worm.METAMORPH_SEARCH = Worm.APPROXIMATE_METAMORPH_SEARCH;
+            }
+            else
+            {
+               System.err.println("Invalid metamorphSearch option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-validateMorphognosticUpdate"))
+         {
+            Worm.VALIDATE_MORPHOGNOSTIC_UPDATE = true;
+            continue;
+         }
+         if (args[i].equals("-wormsimJacobian"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid wormsimJacobian option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("analytic"))
+            {
+               Worm.WORMSIM_ANALYTIC_JACOBIAN = true;
+            }
+            else if (args[i].equals("differenceQuotient"))
+            {
+               Worm.WORMSIM_ANALYTIC_JACOBIAN = false;
+            }
+            else
+            {
+               System.err.println("Invalid wormsimJacobian option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
          if (args[i].equals("-foodColor"))
          {
             i++;
@@ -763,6 +1108,16 @@ public class Main
          System.err.println(Usage);
          System.exit(1);
       }
+      if ((Worm.METAMORPH_DB != null) &&
+          ((MetamorphStore.MAX_ROWS > 0) || (MetamorphStore.MAX_BYTES > 0) ||
+           (MetamorphStore.EVICTION != MetamorphStore.LRU_EVICTION) ||
+           (MetamorphStore.QUANTIZATION != MetamorphStore.NO_QUANTIZATION) ||
+           MetamorphStore.SHARE_NEIGHBORHOODS))
+      {
+         System.err.println("metamorphDB databases are unbounded and unquantized: maxMetamorphs, maxMetamorphBytes, metamorphEviction, metamorphQuantization and shareNeighborhoods options do not apply");
+         System.err.println(Usage);
+         System.exit(1);
+      }
 
       // Set look and feel.
       try {
@@ -835,9 +1190,32 @@ public class Main
          }
       }
 
+      if ((driver == Worm.DRIVER_TYPE.METAMORPH_H2O_NN.getValue()) &&
+          Worm.evaluateMetamorphH2ONNmodels && (main.worm.H2OresponseLabels != null))
+      {
+         try
+         {
+            System.out.println("Head metamorph H2O NN accuracy=" + main.worm.evaluateMetamorphH2ONN(true));
+            System.out.println("Body metamorph H2O NN accuracy=" + main.worm.evaluateMetamorphH2ONN(false));
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot evaluate metamorph H2O NN: " + e.getMessage());
+         }
+      }
+
       // Run.
       boolean result = main.run(steps);
 
+      // Report approximate metamorph search recall.
+      if ((Worm.METAMORPH_SEARCH == Worm.APPROXIMATE_METAMORPH_SEARCH) &&
+          (main.worm.approximateRecallSamples > 0))
+      {
+         System.out.println("Approximate metamorph search recall=" + main.worm.getApproximateRecall() +
+                            " (" + main.worm.approximateRecallHits + "/" + main.worm.approximateRecallSamples +
+                            " sampled searches)");
+      }
+
       // Save?
       if (savefile != null)
       {
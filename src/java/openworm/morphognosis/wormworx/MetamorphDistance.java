@@ -0,0 +1,152 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Morphognostic distance kernel over flattened density rows.
+// Rows are in Morphognostic.compare order, divided into neighborhoods by end offsets.
+// The scalar distance sums by neighborhood in the same float order as
+// Morphognostic.compare, so results are identical.
+// The batched distances use the jdk.incubator.vector SIMD kernel when the module
+// is present (--add-modules jdk.incubator.vector), and the scalar distance otherwise.
+// SIMD lane sums are reordered, so batched distances may differ from the scalar
+// distance in the last bits, within tolerance(rowLength).
+
+package openworm.morphognosis.wormworx;
+
+public class MetamorphDistance
+{
+   // SIMD kernel available?
+   static final boolean VECTORIZED;
+   static
+   {
+      boolean vectorized;
+      try
+      {
+         vectorized = MetamorphVectorDistance.init();
+      }
+      catch (Throwable e)
+      {
+         vectorized = false;
+      }
+      VECTORIZED = vectorized;
+   }
+
+   // Use SIMD kernel if available.
+   public static boolean VECTORIZE = true;
+
+   // Batched distances are vectorized?
+   public static boolean isVectorized()
+   {
+      return(VECTORIZE && VECTORIZED);
+   }
+
+
+   // Relative bound on float summation error of distances over rows of length,
+   // in any summation order.
+   public static double tolerance(int rowLength)
+   {
+      return((double)(rowLength + 2) * (double)Math.ulp(1.0f));
+   }
+
+
+   // Distance from query to row at offset in rows.
+   public static float distance(float[] query, float[] rows, int offset, int[] offsets)
+   {
+      float dist = 0.0f;
+
+      for (int i = 0, j = 0; i < offsets.length; i++)
+      {
+         float d = 0.0f;
+         for ( ; j < offsets[i]; j++)
+         {
+            d += Math.abs(query[j] - rows[offset + j]);
+         }
+         dist += d;
+      }
+      return(dist);
+   }
+
+
+   // Distance between rows at offsets.
+   public static float distance(float[] rows, int offset1, int offset2, int[] offsets)
+   {
+      float dist = 0.0f;
+
+      for (int i = 0, j = 0; i < offsets.length; i++)
+      {
+         float d = 0.0f;
+         for ( ; j < offsets[i]; j++)
+         {
+            d += Math.abs(rows[offset1 + j] - rows[offset2 + j]);
+         }
+         dist += d;
+      }
+      return(dist);
+   }
+
+
+   // Distances from query to count consecutive rows starting at row first,
+   // written to distances[0 .. count - 1].
+   public static void distances(float[] query, float[] rows, int first, int count,
+                                int[] offsets, float[] distances)
+   {
+      distances(query, rows, first, count, offsets, distances, 0);
+   }
+
+
+   // Distances from query to count consecutive rows starting at row first,
+   // written to distances starting at index start.
+   public static void distances(float[] query, float[] rows, int first, int count,
+                                int[] offsets, float[] distances, int start)
+   {
+      int rowLength = offsets[offsets.length - 1];
+
+      if (isVectorized())
+      {
+         MetamorphVectorDistance.distances(query, rows, first, count, offsets, distances, start);
+      }
+      else
+      {
+         for (int i = start, j = start + count, offset = first * rowLength; i < j; i++, offset += rowLength)
+         {
+            distances[i] = distance(query, rows, offset, offsets);
+         }
+      }
+   }
+
+
+   // Widen bound on distance by summation tolerance, so that a row whose distance
+   // exceeds the widened bound in any summation order is beyond bound in every order.
+   public static double widenBound(float bound, int rowLength)
+   {
+      double tolerance = tolerance(rowLength);
+
+      return((double)bound * (1.0 + tolerance) / (1.0 - tolerance));
+   }
+
+
+   // Bounded distance from query to row at offset in rows.
+   // Neighborhoods are summed in the given order, abandoning the row as soon
+   // as the partial sum exceeds bound, in which case the partial sum is returned.
+   public static float boundedDistance(float[] query, float[] rows, int offset, int[] offsets,
+                                       int[] order, double bound)
+   {
+      if (isVectorized())
+      {
+         return(MetamorphVectorDistance.boundedDistance(query, rows, offset, offsets, order, bound));
+      }
+      float dist = 0.0f;
+      for (int i : order)
+      {
+         float d = 0.0f;
+         for (int j = (i == 0 ? 0 : offsets[i - 1]), end = offsets[i]; j < end; j++)
+         {
+            d += Math.abs(query[j] - rows[offset + j]);
+         }
+         dist += d;
+         if ((double)dist > bound)
+         {
+            break;
+         }
+      }
+      return(dist);
+   }
+}
@@ -0,0 +1,476 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Metamorph distance benchmark.
+// Times nearest metamorph scans of a saved worm's metamorphs with
+// Morphognostic.compare, the scalar row distance, and the batched and bounded
+// distances, and verifies that all find the same nearest metamorphs.
+// With -quantization, also reports the memory and nearest metamorph response
+// accuracy delta of a quantized copy of the store, and verifies that it finds
+// every stored metamorph exactly, also after saving and loading it.
+// Run with --add-modules jdk.incubator.vector to enable the SIMD kernel.
+
+package openworm.morphognosis.wormworx;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import morphognosis.Morphognostic;
+
+public class MetamorphDistanceBenchmark
+{
+   // Default queries.
+   public static final int DEFAULT_QUERIES = 200;
+
+   // Default warmup passes.
+   public static final int DEFAULT_WARMUP = 3;
+
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "  java [--add-modules jdk.incubator.vector] openworm.morphognosis.wormworx.MetamorphDistanceBenchmark\n" +
+      "      -load <worm file name>\n" +
+      "     [-queries <queries> (default=" + DEFAULT_QUERIES + ")]\n" +
+      "     [-warmup <passes> (default=" + DEFAULT_WARMUP + ")]\n" +
+      "     [-randomSeed <random number seed> (default=" + Main.DEFAULT_RANDOM_SEED + ")]\n" +
+      "     [-quantization <float16 | int8> (report quantized store accuracy)]\n" +
+      "Exit codes:\n" +
+      "  0=same nearest metamorphs\n" +
+      "  1=fail";
+
+   // Benchmark store and return whether results agree.
+   public static boolean benchmark(String name, MetamorphStore store, int numQueries, int warmup, int randomSeed,
+                                   int quantization)
+   {
+      int n = store.size();
+
+      if (n == 0)
+      {
+         System.out.println(name + ": no metamorphs");
+         return(true);
+      }
+      Morphognostic[] morphognostics = new Morphognostic[n];
+      for (int i = 0; i < n; i++)
+      {
+         morphognostics[i] = store.getMorphognostic(i);
+      }
+
+      // Queries blend two metamorph morphognostics.
+      Random          random  = new Random(randomSeed);
+      Morphognostic[] queries = new Morphognostic[numQueries];
+      for (int q = 0; q < numQueries; q++)
+      {
+         Morphognostic query = morphognostics[random.nextInt(n)].clone();
+         Morphognostic other = morphognostics[random.nextInt(n)];
+         for (int i = 0; i < query.NUM_NEIGHBORHOODS; i++)
+         {
+            Morphognostic.Neighborhood.Sector[][] sectors1 = query.neighborhoods.get(i).sectors;
+            Morphognostic.Neighborhood.Sector[][] sectors2 = other.neighborhoods.get(i).sectors;
+            for (int x = 0; x < sectors1.length; x++)
+            {
+               for (int y = 0; y < sectors1.length; y++)
+               {
+                  float[][] densities1 = sectors1[x][y].typeDensities;
+                  float[][] densities2 = sectors2[x][y].typeDensities;
+                  for (int d = 0; d < densities1.length; d++)
+                  {
+                     for (int j = 0; j < densities1[d].length; j++)
+                     {
+                        if (random.nextBoolean())
+                        {
+                           densities1[d][j] = densities2[d][j];
+                        }
+                     }
+                  }
+               }
+            }
+         }
+         queries[q] = query;
+      }
+
+      // Nearest metamorphs by Morphognostic.compare.
+      int[][] nearest = new int[numQueries][];
+      for (int q = 0; q < numQueries; q++)
+      {
+         nearest[q] = compareScan(queries[q], morphognostics);
+      }
+
+      // Time passes after warmup.
+      long[]    times   = new long[4];
+      int[][][] results = new int[4][numQueries][];
+      boolean   bounded = MetamorphStore.BOUNDED_DISTANCE;
+      for (int pass = 0; pass <= warmup; pass++)
+      {
+         for (int method = 0; method < 4; method++)
+         {
+            MetamorphStore.BOUNDED_DISTANCE = (method == 3);
+            long start = System.nanoTime();
+            for (int q = 0; q < numQueries; q++)
+            {
+               if (method == 0)
+               {
+                  results[method][q] = compareScan(queries[q], morphognostics);
+               }
+               else if (method == 1)
+               {
+                  results[method][q] = scalarScan(store, queries[q]);
+               }
+               else
+               {
+                  results[method][q] = store.scan(queries[q]);
+               }
+            }
+            times[method] = System.nanoTime() - start;
+         }
+      }
+      MetamorphStore.BOUNDED_DISTANCE = bounded;
+      boolean agree = true;
+      for (int method = 0; method < 4; method++)
+      {
+         for (int q = 0; q < numQueries; q++)
+         {
+            if (!Arrays.equals(results[method][q], nearest[q]))
+            {
+               agree = false;
+            }
+         }
+      }
+      System.out.println(name + ": metamorphs=" + n + " row length=" + store.rowLength() +
+                         " queries=" + numQueries);
+      System.out.println("   Morphognostic.compare ms=" + (times[0] / 1000000.0));
+      System.out.println("   scalar row distance ms=" + (times[1] / 1000000.0) +
+                         " speedup=" + ((double)times[0] / (double)times[1]));
+      System.out.println("   batched " + (MetamorphDistance.isVectorized() ? "vector" : "scalar") +
+                         " distances ms=" + (times[2] / 1000000.0) +
+                         " speedup=" + ((double)times[0] / (double)times[2]));
+      System.out.println("   bounded " + (MetamorphDistance.isVectorized() ? "vector" : "scalar") +
+                         " distances ms=" + (times[3] / 1000000.0) +
+                         " speedup=" + ((double)times[0] / (double)times[3]));
+      System.out.println("   same nearest metamorphs=" + agree);
+      if (quantization != MetamorphStore.NO_QUANTIZATION)
+      {
+         agree &= benchmarkQuantization(store, morphognostics, queries, nearest, quantization);
+      }
+      return(agree);
+   }
+
+
+   // Report quantized store memory, scan time and response accuracy delta against
+   // the full precision nearest metamorphs, and return whether all metamorphs are found exactly.
+   static boolean benchmarkQuantization(MetamorphStore store, Morphognostic[] morphognostics,
+                                        Morphognostic[] queries, int[][] nearest, int quantization)
+   {
+      MetamorphQuantizedStore quantized = new MetamorphQuantizedStore(quantization);
+
+      for (int i = 0; i < morphognostics.length; i++)
+      {
+         quantized.add(morphognostics[i], store.getResponse(i), store.getResponseName(i));
+      }
+      boolean found = foundExactly(quantized, morphognostics);
+
+      // Save and load round trip.
+      MetamorphQuantizedStore loaded = new MetamorphQuantizedStore(quantization);
+      try
+      {
+         ByteArrayOutputStream bytes  = new ByteArrayOutputStream();
+         DataOutputStream      output = new DataOutputStream(bytes);
+         quantized.save(output);
+         quantized.saveRowState(output);
+         output.flush();
+         DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+         loaded.load(input, true);
+         loaded.loadRowState(input);
+      }
+      catch (IOException e)
+      {
+         System.err.println("Cannot save and load quantized store: " + e.getMessage());
+         return(false);
+      }
+      boolean loadedFound = foundExactly(loaded, morphognostics);
+
+      // Response accuracy: probability that a random nearest metamorph response is
+      // that of a random full precision nearest metamorph.
+      double accuracy          = 0.0;
+      double quantizedAccuracy = 0.0;
+      int    sameNearest       = 0;
+      long   start             = System.nanoTime();
+      int[][] results          = new int[queries.length][];
+      for (int q = 0; q < queries.length; q++)
+      {
+         results[q] = quantized.scan(queries[q]);
+      }
+      long time = System.nanoTime() - start;
+      for (int q = 0; q < queries.length; q++)
+      {
+         accuracy          += responseAgreement(store, nearest[q], nearest[q]);
+         quantizedAccuracy += responseAgreement(store, results[q], nearest[q]);
+         if (Arrays.equals(results[q], nearest[q]))
+         {
+            sameNearest++;
+         }
+      }
+      accuracy          /= queries.length;
+      quantizedAccuracy /= queries.length;
+      System.out.println("   " + (quantization == MetamorphStore.INT8_QUANTIZATION ? "int8" : "float16") +
+                         " quantized density bytes per row=" + quantized.densityBytes() +
+                         " (full=" + store.densityBytes() + ")" +
+                         " scan ms=" + (time / 1000000.0));
+      System.out.println("   quantized same nearest metamorphs=" + ((double)sameNearest / queries.length) +
+                         " response accuracy=" + quantizedAccuracy + " (full=" + accuracy + ")" +
+                         " delta=" + (quantizedAccuracy - accuracy));
+      System.out.println("   quantized exact matches=" + found + " (after save and load=" + loadedFound + ")");
+      return(found && loadedFound);
+   }
+
+
+   // Are all morphognostics found exactly at their rows?
+   static boolean foundExactly(MetamorphStore store, Morphognostic[] morphognostics)
+   {
+      boolean found = true;
+
+      for (int i = 0; i < morphognostics.length; i++)
+      {
+         boolean f = false;
+         for (int row = store.find(morphognostics[i]); row != -1; row = store.findNext(row))
+         {
+            if (row == i)
+            {
+               f = true;
+            }
+         }
+         found &= f;
+      }
+      return(found);
+   }
+
+
+   // Probability that the responses of random rows and random reference rows agree.
+   static double responseAgreement(MetamorphStore store, int[] rows, int[] reference)
+   {
+      int agree = 0;
+
+      for (int row : rows)
+      {
+         for (int r : reference)
+         {
+            if (store.getResponse(row) == store.getResponse(r))
+            {
+               agree++;
+            }
+         }
+      }
+      return((double)agree / (double)(rows.length * reference.length));
+   }
+
+
+   // Scan with Morphognostic.compare.
+   static int[] compareScan(Morphognostic query, Morphognostic[] morphognostics)
+   {
+      ArrayList<Integer> rows = new ArrayList<Integer>();
+      float              dist = -1.0f;
+
+      for (int i = 0; i < morphognostics.length; i++)
+      {
+         float d = query.compare(morphognostics[i]);
+         if ((dist < 0.0f) || (d < dist))
+         {
+            rows.clear();
+            rows.add(i);
+            dist = d;
+         }
+         else if (d == dist)
+         {
+            rows.add(i);
+         }
+      }
+      int[] result = new int[rows.size()];
+      for (int i = 0; i < result.length; i++)
+      {
+         result[i] = rows.get(i);
+      }
+      return(result);
+   }
+
+
+   // Scan with scalar row distance.
+   static int[] scalarScan(MetamorphStore store, Morphognostic query)
+   {
+      float[] features = store.flatten(query);
+      int[]   rows     = new int[store.size()];
+      int     numRows  = 0;
+      float   dist     = -1.0f;
+
+      for (int i = 0, n = store.size(); i < n; i++)
+      {
+         float d = store.distance(features, i);
+         if ((dist < 0.0f) || (d < dist))
+         {
+            numRows = 0;
+            dist    = d;
+         }
+         if (d == dist)
+         {
+            rows[numRows++] = i;
+         }
+      }
+      return(Arrays.copyOf(rows, numRows));
+   }
+
+
+   // Main.
+   public static void main(String[] args)
+   {
+      String filename     = null;
+      int    numQueries   = DEFAULT_QUERIES;
+      int    warmup       = DEFAULT_WARMUP;
+      int    randomSeed   = Main.DEFAULT_RANDOM_SEED;
+      int    quantization = MetamorphStore.NO_QUANTIZATION;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-load"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid load option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            filename = args[i];
+            continue;
+         }
+         if (args[i].equals("-queries"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid queries option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               numQueries = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid queries option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (numQueries <= 0)
+            {
+               System.err.println("Invalid queries option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-warmup"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid warmup option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               warmup = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid warmup option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (warmup < 0)
+            {
+               System.err.println("Invalid warmup option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-randomSeed"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               randomSeed = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-quantization"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid quantization option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("float16"))
+            {
+               quantization = MetamorphStore.FLOAT16_QUANTIZATION;
+            }
+            else if (args[i].equals("int8"))
+            {
+               quantization = MetamorphStore.INT8_QUANTIZATION;
+            }
+            else
+            {
+               System.err.println("Invalid quantization option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (filename == null)
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      Main main = new Main(Agar.RED_FOOD, -1, -1, randomSeed);
+      try
+      {
+         main.load(filename);
+      }
+      catch (Exception e)
+      {
+         System.err.println("Cannot load from file " + filename + ": " + e.getMessage());
+         System.exit(1);
+      }
+      boolean agree = benchmark("Head", main.worm.headMetamorphs, numQueries, warmup, randomSeed, quantization);
+      agree &= benchmark("Body", main.worm.bodyMetamorphs, numQueries, warmup, randomSeed, quantization);
+      if (agree)
+      {
+         System.out.println("Pass");
+         System.exit(0);
+      }
+      else
+      {
+         System.out.println("Fail");
+         System.exit(1);
+      }
+   }
+}
@@ -0,0 +1,319 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Locality-sensitive hash index of metamorph store rows for approximate
+// nearest morphognostic search.
+// Uses L1 (Cauchy) stable projections: each table hashes a row to the
+// concatenated bucket numbers floor((a . row + b) / width) of its functions.
+// Search resolves at most MAX_CANDIDATES rows from the query's buckets, probing
+// adjacent buckets if these are empty, with bounded exact distances. The width is
+// set from sampled row distances and the tables are rebuilt as the store doubles.
+
+package openworm.morphognosis.wormworx;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import morphognosis.Morphognostic;
+
+public class MetamorphLSH
+{
+   // Hash tables.
+   public static int NUM_TABLES = 12;
+
+   // Hash functions per table.
+   public static int NUM_FUNCTIONS = 3;
+
+   // Bucket width as a multiple of mean sampled row distance.
+   public static float WIDTH_FACTOR = 1.0f;
+
+   // Maximum candidate rows resolved per search.
+   public static int MAX_CANDIDATES = 1024;
+
+   // Row pairs sampled to set width.
+   public static final int WIDTH_SAMPLES = 256;
+
+   // Random seed of projections.
+   public static final int PROJECTION_SEED = 4517;
+
+   // Bucket of rows.
+   static class Bucket
+   {
+      int[] rows;
+      int   numRows;
+
+      Bucket()
+      {
+         rows = new int[4];
+      }
+
+
+      void add(int row)
+      {
+         if (numRows == rows.length)
+         {
+            rows = Arrays.copyOf(rows, numRows * 2);
+         }
+         rows[numRows++] = row;
+      }
+   }
+
+   // Indexed store.
+   MetamorphStore store;
+
+   // Projections [table * NUM_FUNCTIONS + function][density], offsets and width.
+   float[][] projections;
+   float[]   shifts;
+   float     width;
+
+   // Tables of bucket key to rows.
+   HashMap<Long, Bucket>[] tables;
+   int size;
+   int widthSize;
+   int generation;
+
+   // Search state.
+   int[]   hashes;
+   int[]   candidates;
+   int[]   candidateStamps;
+   int     candidateStamp;
+   float[] projection;
+
+   // Constructor.
+   public MetamorphLSH(MetamorphStore store)
+   {
+      this.store = store;
+      clear();
+   }
+
+
+   // Clear.
+   @SuppressWarnings({ "unchecked", "rawtypes" })
+   public void clear()
+   {
+      projections     = null;
+      shifts          = null;
+      tables          = new HashMap[NUM_TABLES];
+      for (int i = 0; i < NUM_TABLES; i++)
+      {
+         tables[i] = new HashMap<Long, Bucket>();
+      }
+      size            = 0;
+      widthSize       = 0;
+      generation      = store.generation();
+      hashes          = new int[NUM_TABLES * NUM_FUNCTIONS];
+      candidates      = new int[MAX_CANDIDATES];
+      candidateStamps = new int[0];
+      candidateStamp  = 0;
+      projection      = new float[NUM_TABLES * NUM_FUNCTIONS];
+   }
+
+
+   // Size.
+   public int size()
+   {
+      return(size);
+   }
+
+
+   // Index store rows added since last update.
+   // The tables are rebuilt with a new width when the store has doubled,
+   // and rebuilt when store rows have been evicted.
+   public void update()
+   {
+      int n = store.size();
+
+      if (generation != store.generation())
+      {
+         clear();
+      }
+      if (n == size)
+      {
+         return;
+      }
+      if (projections == null)
+      {
+         Random random = new Random(PROJECTION_SEED);
+         int    m      = NUM_TABLES * NUM_FUNCTIONS;
+         projections = new float[m][store.rowLength()];
+         shifts      = new float[m];
+         for (int i = 0; i < m; i++)
+         {
+            for (int j = 0; j < projections[i].length; j++)
+            {
+               // Cauchy variate.
+               projections[i][j] = (float)Math.tan(Math.PI * (random.nextDouble() - 0.5));
+            }
+            shifts[i] = random.nextFloat();
+         }
+      }
+      if (n >= widthSize * 2)
+      {
+         setWidth();
+         for (HashMap<Long, Bucket> table : tables)
+         {
+            table.clear();
+         }
+         size = 0;
+      }
+      float[] row = new float[store.rowLength()];
+      for ( ; size < n; size++)
+      {
+         store.getRow(size, row, 0);
+         hash(row, 0);
+         for (int t = 0; t < NUM_TABLES; t++)
+         {
+            long   key    = key(t, hashes, null);
+            Bucket bucket = tables[t].get(key);
+            if (bucket == null)
+            {
+               bucket = new Bucket();
+               tables[t].put(key, bucket);
+            }
+            bucket.add(size);
+         }
+      }
+   }
+
+
+   // Set width from mean distance of sampled row pairs.
+   void setWidth()
+   {
+      int    n      = store.size();
+      Random random = new Random(n);
+      double sum    = 0.0;
+
+      for (int i = 0; i < WIDTH_SAMPLES; i++)
+      {
+         sum += store.distance(random.nextInt(n), random.nextInt(n));
+      }
+      width = (float)(sum / WIDTH_SAMPLES) * WIDTH_FACTOR;
+      if (width <= 0.0f)
+      {
+         width = 1.0f;
+      }
+      widthSize = n;
+   }
+
+
+   // Hash densities at offset into hashes.
+   void hash(float[] densities, int offset)
+   {
+      int rowLength = store.rowLength();
+
+      for (int i = 0; i < projections.length; i++)
+      {
+         float[] a = projections[i];
+         float   p = 0.0f;
+         for (int j = 0; j < rowLength; j++)
+         {
+            p += a[j] * densities[offset + j];
+         }
+         projection[i] = p / width + shifts[i];
+         hashes[i]     = (int)Math.floor(projection[i]);
+      }
+   }
+
+
+   // Bucket key of table from function hashes, with optional function probe (index, direction).
+   long key(int table, int[] hashes, int[] probe)
+   {
+      long key = table;
+
+      for (int i = table * NUM_FUNCTIONS, j = 0; j < NUM_FUNCTIONS; i++, j++)
+      {
+         int h = hashes[i];
+         if ((probe != null) && (probe[0] == j))
+         {
+            h += probe[1];
+         }
+         key = key * 0x100000001b3L + h;
+      }
+      return(key);
+   }
+
+
+   // Search for rows at minimum distance among candidates, in row order.
+   public int[] search(Morphognostic morphognostic)
+   {
+      update();
+      if (size == 0)
+      {
+         return(new int[0]);
+      }
+      float[] query = store.flatten(morphognostic);
+      hash(query, 0);
+      if (candidateStamps.length < size)
+      {
+         candidateStamps = new int[Math.max(store.capacity, size)];
+         candidateStamp  = 0;
+      }
+      candidateStamp++;
+      int numCandidates = 0;
+      for (int t = 0; t < NUM_TABLES && numCandidates < MAX_CANDIDATES; t++)
+      {
+         numCandidates = gather(tables[t].get(key(t, hashes, null)), numCandidates);
+      }
+
+      // Probe adjacent buckets toward each projection's nearer boundary.
+      if (numCandidates == 0)
+      {
+         int[] probe = new int[2];
+         for (int t = 0; t < NUM_TABLES && numCandidates < MAX_CANDIDATES; t++)
+         {
+            for (int j = 0; j < NUM_FUNCTIONS && numCandidates < MAX_CANDIDATES; j++)
+            {
+               int i = t * NUM_FUNCTIONS + j;
+               probe[0] = j;
+               probe[1] = (projection[i] - (float)hashes[i] < 0.5f) ? -1 : 1;
+               numCandidates = gather(tables[t].get(key(t, hashes, probe)), numCandidates);
+            }
+         }
+      }
+      Arrays.sort(candidates, 0, numCandidates);
+      float  dist    = Float.MAX_VALUE;
+      double bound   = Double.MAX_VALUE;
+      int[]  rows    = new int[numCandidates];
+      int    numRows = 0;
+      for (int i = 0; i < numCandidates; i++)
+      {
+         // Skip candidates abandoned beyond the nearest distance.
+         if (MetamorphStore.BOUNDED_DISTANCE && (numRows > 0) &&
+             (store.boundedDistance(query, candidates[i], bound) > bound))
+         {
+            continue;
+         }
+         float d = store.distance(query, candidates[i]);
+         if (d < dist)
+         {
+            dist    = d;
+            bound   = MetamorphDistance.widenBound(dist, store.rowLength());
+            numRows = 0;
+         }
+         if (d == dist)
+         {
+            rows[numRows++] = candidates[i];
+         }
+      }
+      return(Arrays.copyOf(rows, numRows));
+   }
+
+
+   // Gather distinct candidate rows from bucket.
+   int gather(Bucket bucket, int numCandidates)
+   {
+      if (bucket != null)
+      {
+         for (int i = 0; i < bucket.numRows && numCandidates < MAX_CANDIDATES; i++)
+         {
+            int row = bucket.rows[i];
+            if (candidateStamps[row] != candidateStamp)
+            {
+               candidateStamps[row]          = candidateStamp;
+               candidates[numCandidates++] = row;
+            }
+         }
+      }
+      return(numCandidates);
+   }
+}
@@ -0,0 +1,236 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Flat multilayer perceptron inference exported from a trained Weka network.
+// Attributes are normalized as Weka does, and each layer of sigmoid units is a
+// dense matrix-vector product over float weights, with the unit bias first as
+// in Weka node weights. The class is the output unit of maximum value.
+
+package openworm.morphognosis.wormworx;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import weka.classifiers.functions.MultilayerPerceptron;
+import weka.classifiers.functions.neural.NeuralConnection;
+import weka.classifiers.functions.neural.NeuralNode;
+import weka.classifiers.functions.neural.SigmoidUnit;
+import weka.core.Instances;
+
+public class MetamorphMLP
+{
+   // Input attribute indexes and normalization: (value - base) / range, or value - base if range is 0.
+   int[]    inputAttributes;
+   double[] inputBases;
+   double[] inputRanges;
+
+   // Layer unit counts, including inputs, and weights [unit * (previous units + 1)].
+   int[]     layerSizes;
+   float[][] weights;
+
+   // Unit values of layers.
+   float[][] values;
+
+   // Constructor.
+   MetamorphMLP(int[] layerSizes)
+   {
+      this.layerSizes = layerSizes;
+      inputAttributes = new int[layerSizes[0]];
+      inputBases      = new double[layerSizes[0]];
+      inputRanges     = new double[layerSizes[0]];
+      weights         = new float[layerSizes.length][];
+      values          = new float[layerSizes.length][];
+      for (int i = 0; i < layerSizes.length; i++)
+      {
+         values[i] = new float[layerSizes[i]];
+         if (i > 0)
+         {
+            weights[i] = new float[layerSizes[i] * (layerSizes[i - 1] + 1)];
+         }
+      }
+   }
+
+
+   // Export trained network, or return null if it is not a layered sigmoid network
+   // over numeric attributes with a nominal class.
+   public static MetamorphMLP export(MultilayerPerceptron nn) throws Exception
+   {
+      if (((Boolean)getField(nn, "m_useDefaultModel")) || ((Boolean)getField(nn, "m_numeric")))
+      {
+         return(null);
+      }
+      Instances instances = (Instances)getField(nn, "m_instances");
+      for (int i = 0; i < instances.numAttributes(); i++)
+      {
+         if ((i != instances.classIndex()) && !instances.attribute(i).isNumeric())
+         {
+            return(null);
+         }
+      }
+      NeuralConnection[] inputs    = (NeuralConnection[])getField(nn, "m_inputs");
+      NeuralConnection[] outputs   = (NeuralConnection[])getField(nn, "m_outputs");
+      boolean            normalize = (Boolean)getField(nn, "m_normalizeAttributes");
+      double[]           ranges    = (double[])getField(nn, "m_attributeRanges");
+      double[]           bases     = (double[])getField(nn, "m_attributeBases");
+
+      // Collect layers back from output units, each unit taking all units of the layer below.
+      NeuralConnection[] layer = new NeuralConnection[outputs.length];
+      for (int i = 0; i < outputs.length; i++)
+      {
+         NeuralConnection[] ends = outputs[i].getInputs();
+         if ((outputs[i].getNumInputs() != 1) || !(ends[0] instanceof NeuralNode))
+         {
+            return(null);
+         }
+         layer[i] = ends[0];
+      }
+      ArrayList<NeuralConnection[]> layers = new ArrayList<NeuralConnection[]>();
+      while (layer[0] instanceof NeuralNode)
+      {
+         layers.add(0, layer);
+         layer = ((NeuralNode)layer[0]).getInputs();
+         layer = Arrays.copyOf(layer, ((NeuralNode)layers.get(0)[0]).getNumInputs());
+      }
+      for (NeuralConnection input : layer)
+      {
+         if (indexOf(inputs, input) == -1)
+         {
+            return(null);
+         }
+      }
+      layers.add(0, layer);
+      int[] layerSizes = new int[layers.size()];
+      for (int i = 0; i < layerSizes.length; i++)
+      {
+         layerSizes[i] = layers.get(i).length;
+      }
+      MetamorphMLP mlp = new MetamorphMLP(layerSizes);
+
+      // Inputs.
+      Field link = layer[0].getClass().getDeclaredField("m_link");
+      link.setAccessible(true);
+      for (int i = 0; i < layer.length; i++)
+      {
+         int a = (Integer)link.get(layer[i]);
+         mlp.inputAttributes[i] = a;
+         mlp.inputBases[i]      = (normalize ? bases[a] : 0.0);
+         mlp.inputRanges[i]     = (normalize ? ranges[a] : 0.0);
+      }
+
+      // Layer weights, in order of the units of the layer below.
+      for (int l = 1; l < layerSizes.length; l++)
+      {
+         NeuralConnection[] below = layers.get(l - 1);
+         IdentityHashMap<NeuralConnection, Integer> index = new IdentityHashMap<NeuralConnection, Integer>();
+         for (int i = 0; i < below.length; i++)
+         {
+            index.put(below[i], i);
+         }
+         int stride = below.length + 1;
+         for (int u = 0; u < layerSizes[l]; u++)
+         {
+            NeuralNode node = (NeuralNode)layers.get(l)[u];
+            if (!(node.getMethod() instanceof SigmoidUnit) || (node.getNumInputs() != below.length))
+            {
+               return(null);
+            }
+            double[]           w          = node.getWeights();
+            NeuralConnection[] nodeInputs = node.getInputs();
+            mlp.weights[l][u * stride] = (float)w[0];
+            for (int i = 0; i < below.length; i++)
+            {
+               Integer j = index.get(nodeInputs[i]);
+               if (j == null)
+               {
+                  return(null);
+               }
+               mlp.weights[l][u * stride + 1 + j] = (float)w[i + 1];
+            }
+         }
+      }
+      return(mlp);
+   }
+
+
+   // Get private network field.
+   static Object getField(MultilayerPerceptron nn, String name) throws Exception
+   {
+      Field field = MultilayerPerceptron.class.getDeclaredField(name);
+
+      field.setAccessible(true);
+      return(field.get(nn));
+   }
+
+
+   // Index of connection in array, or -1.
+   static int indexOf(NeuralConnection[] connections, NeuralConnection connection)
+   {
+      for (int i = 0; i < connections.length; i++)
+      {
+         if (connections[i] == connection)
+         {
+            return(i);
+         }
+      }
+      return(-1);
+   }
+
+
+   // Classify attribute values, returning class index, or -1 if no output is positive.
+   public int classify(double[] attributes)
+   {
+      float[] input = values[0];
+
+      for (int i = 0; i < input.length; i++)
+      {
+         double v = attributes[inputAttributes[i]] - inputBases[i];
+         if (inputRanges[i] != 0.0)
+         {
+            v /= inputRanges[i];
+         }
+         input[i] = (float)v;
+      }
+      for (int l = 1; l < layerSizes.length; l++)
+      {
+         float[] below = values[l - 1];
+         float[] units = values[l];
+         float[] w     = weights[l];
+         int     n     = below.length;
+         for (int u = 0, k = 0; u < units.length; u++)
+         {
+            float sum = w[k++];
+            for (int i = 0; i < n; i++, k++)
+            {
+               sum += below[i] * w[k];
+            }
+            units[u] = sigmoid(sum);
+         }
+      }
+      float[] output = values[layerSizes.length - 1];
+      int     best   = 0;
+      for (int i = 1; i < output.length; i++)
+      {
+         if (output[i] > output[best])
+         {
+            best = i;
+         }
+      }
+      return(output[best] > 0.0f ? best : -1);
+   }
+
+
+   // Sigmoid unit, clamped as Weka's.
+   static float sigmoid(float x)
+   {
+      if (x < -45.0f)
+      {
+         return(0.0f);
+      }
+      if (x > 45.0f)
+      {
+         return(1.0f);
+      }
+      return((float)(1.0 / (1.0 + Math.exp(-(double)x))));
+   }
+}
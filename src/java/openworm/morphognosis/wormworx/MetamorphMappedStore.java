@@ -0,0 +1,642 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Persistent memory-mapped metamorph store.
+// Rows are fixed-width records in an append-only file, mapped in segments,
+// so that stores larger than the heap are paged in by the operating system.
+// A hash index of row chains is kept in a mapped companion file (.index),
+// and is rebuilt from the records if missing or stale.
+// File layout (little-endian):
+//   header page: magic, version, row length, size, template bytes, number of
+//                response names, then names as (length, UTF-8 bytes),
+//   cleared template morphognostic (Morphognostic.save), page aligned,
+//   records: hash (long), next row in chain, response, response name, pad,
+//            densities in store order.
+// Scans copy blocks of records from the mapping and use the heap distance kernels.
+// Stores are unbounded: row count and byte caps do not apply.
+// All response names must fit in the header page: adding a name that does not
+// fails with an IOException (wrapped in UncheckedIOException).
+
+package openworm.morphognosis.wormworx;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import morphognosis.Morphognostic;
+import morphognosis.Utility;
+
+public class MetamorphMappedStore extends MetamorphStore
+{
+   // File magic and version.
+   public static final int MAGIC   = 0x57574d44;
+   public static final int VERSION = 1;
+
+   // Header page bytes.
+   public static final int HEADER_BYTES = 4096;
+
+   // Record header bytes before densities.
+   public static final int RECORD_HEADER_BYTES = 24;
+
+   // Maximum bytes mapped per segment.
+   public static final int SEGMENT_BYTES = 1 << 30;
+
+   // Rows copied per scan block.
+   public static final int SCAN_BLOCK_ROWS = 64;
+
+   // Index header bytes and slot bytes.
+   public static final int INDEX_HEADER_BYTES = 16;
+   public static final int INDEX_SLOT_BYTES   = 16;
+
+   // Files.
+   String           path;
+   RandomAccessFile file;
+   FileChannel      channel;
+   MappedByteBuffer header;
+   int              namesEnd;
+
+   // Record geometry and mapped segments.
+   int                         rowBase;
+   int                         recordBytes;
+   int                         segmentRows;
+   ArrayList<MappedByteBuffer> segments;
+   ArrayList<FloatBuffer>      segmentFloats;
+
+   // Hash index: slots of hash, first and last rows plus one (0 is empty).
+   RandomAccessFile indexFile;
+   FileChannel      indexChannel;
+   MappedByteBuffer index;
+   int              indexSize;
+   int              chains;
+
+   // Layout checked against morphognostics?
+   boolean layoutChecked;
+
+   // Scratch rows.
+   ThreadLocal<float[]> scratch;
+   ThreadLocal<float[]> scratch2;
+   ThreadLocal<float[]> scanBlock;
+
+   // Constructor: open or create database file.
+   public MetamorphMappedStore(String path) throws IOException
+   {
+      this.path     = path;
+      segments      = new ArrayList<MappedByteBuffer>();
+      segmentFloats = new ArrayList<FloatBuffer>();
+      scratch       = ThreadLocal.withInitial(() -> new float[rowLength]);
+      scratch2      = ThreadLocal.withInitial(() -> new float[rowLength]);
+      scanBlock     = ThreadLocal.withInitial(() -> new float[SCAN_BLOCK_ROWS * rowLength]);
+      file          = new RandomAccessFile(new File(path), "rw");
+      channel       = file.getChannel();
+      boolean created = (file.length() == 0);
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+      header.order(ByteOrder.LITTLE_ENDIAN);
+      if (created)
+      {
+         header.putInt(0, MAGIC);
+         header.putInt(4, VERSION);
+         header.putInt(8, 0);
+         header.putInt(12, 0);
+         header.putInt(16, 0);
+         header.putInt(20, 0);
+      }
+      else if ((header.getInt(0) != MAGIC) || (header.getInt(4) != VERSION))
+      {
+         close();
+         throw new IOException("Invalid metamorph database file " + path);
+      }
+
+      // Load response names.
+      namesEnd = 24;
+      for (int i = 0, n = header.getInt(20); i < n; i++)
+      {
+         int    length = header.getShort(namesEnd);
+         byte[] bytes  = new byte[length];
+         header.get(namesEnd + 2, bytes);
+         String name = new String(bytes, StandardCharsets.UTF_8);
+         nameIndexes.put(name, names.size());
+         names.add(name);
+         namesEnd += 2 + length;
+      }
+
+      // Load template and map rows.
+      int templateBytes = header.getInt(16);
+      if (templateBytes > 0)
+      {
+         ByteBuffer bytes = ByteBuffer.allocate(templateBytes);
+         channel.read(bytes, HEADER_BYTES);
+         setLayout(Morphognostic.load(new DataInputStream(new ByteArrayInputStream(bytes.array()))));
+      }
+   }
+
+
+   // Clear: truncate rows.
+   public void clear()
+   {
+      super.clear();
+      if (header != null)
+      {
+         header.putInt(12, 0);
+         header.putInt(16, 0);
+         header.putInt(20, 0);
+         namesEnd = 24;
+         segments.clear();
+         segmentFloats.clear();
+         if (index != null)
+         {
+            index.putInt(0, -1);
+         }
+         layoutChecked = false;
+      }
+   }
+
+
+   // Rows are persistent.
+   public boolean isPersistent()
+   {
+      return(true);
+   }
+
+
+   // Allocate: write template if new, map rows and open index.
+   void allocate()
+   {
+      try
+      {
+         maxRows     = 0;
+         recordBytes = RECORD_HEADER_BYTES + rowLength * 4;
+         segmentRows = Math.max(1, SEGMENT_BYTES / recordBytes);
+         int templateBytes = header.getInt(16);
+         if (templateBytes == 0)
+         {
+            ByteArrayOutputStream bytes  = new ByteArrayOutputStream();
+            DataOutputStream      output = new DataOutputStream(bytes);
+            template.save(output);
+            templateBytes = bytes.size();
+            channel.write(ByteBuffer.wrap(bytes.toByteArray()), HEADER_BYTES);
+            header.putInt(8, rowLength);
+            header.putInt(16, templateBytes);
+            layoutChecked = true;
+         }
+         else if (header.getInt(8) != rowLength)
+         {
+            throw new IOException("Metamorph database " + path + " row length mismatch");
+         }
+         rowBase  = (HEADER_BYTES + templateBytes + HEADER_BYTES - 1) / HEADER_BYTES * HEADER_BYTES;
+         size     = header.getInt(12);
+         capacity = 0;
+         reserve(Math.max(size, INITIAL_CAPACITY));
+         openIndex();
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+
+   // Map rows up to capacity of at least rows.
+   void reserve(int rows) throws IOException
+   {
+      while (capacity < rows)
+      {
+         int last = segments.size() - 1;
+         int mapped;
+         if ((last >= 0) && (capacity - last * segmentRows < segmentRows))
+         {
+            // Grow last segment.
+            mapped = Math.min(segmentRows, (capacity - last * segmentRows) * 2);
+            segments.remove(last);
+            segmentFloats.remove(last);
+         }
+         else
+         {
+            last++;
+            mapped = Math.min(segmentRows, INITIAL_CAPACITY);
+         }
+         MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                                                (long)rowBase + (long)last * (long)segmentRows * (long)recordBytes,
+                                                (long)mapped * (long)recordBytes);
+         segment.order(ByteOrder.LITTLE_ENDIAN);
+         segments.add(segment);
+         segmentFloats.add(segment.asFloatBuffer());
+         capacity = last * segmentRows + mapped;
+      }
+   }
+
+
+   // Open hash index, rebuilding it if stale.
+   void openIndex() throws IOException
+   {
+      if (indexFile == null)
+      {
+         indexFile    = new RandomAccessFile(new File(path + ".index"), "rw");
+         indexChannel = indexFile.getChannel();
+      }
+      int tableSize = 0;
+      if (indexFile.length() >= INDEX_HEADER_BYTES)
+      {
+         MappedByteBuffer indexHeader = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_BYTES);
+         indexHeader.order(ByteOrder.LITTLE_ENDIAN);
+         tableSize = indexHeader.getInt(4);
+         if ((indexHeader.getInt(0) != size) || (tableSize <= 0) || (Integer.bitCount(tableSize) != 1) ||
+             (indexFile.length() < INDEX_HEADER_BYTES + (long)tableSize * INDEX_SLOT_BYTES))
+         {
+            tableSize = 0;
+         }
+      }
+      if (tableSize == 0)
+      {
+         rebuildIndex(Math.max(INITIAL_CAPACITY * 2, Integer.highestOneBit(Math.max(size, 1) * 4)));
+      }
+      else
+      {
+         mapIndex(tableSize);
+         chains = index.getInt(8);
+      }
+   }
+
+
+   // Map index with table size.
+   void mapIndex(int tableSize) throws IOException
+   {
+      index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                               INDEX_HEADER_BYTES + (long)tableSize * INDEX_SLOT_BYTES);
+      index.order(ByteOrder.LITTLE_ENDIAN);
+      indexSize = tableSize;
+   }
+
+
+   // Rebuild index with table size from record hashes.
+   void rebuildIndex(int tableSize) throws IOException
+   {
+      mapIndex(tableSize);
+      index.putInt(0, -1);
+      for (int i = INDEX_HEADER_BYTES, j = INDEX_HEADER_BYTES + tableSize * INDEX_SLOT_BYTES; i < j; i += 8)
+      {
+         index.putLong(i, 0L);
+      }
+      chains = 0;
+      for (int row = 0; row < size; row++)
+      {
+         segment(row).putInt(position(row) + 8, -1);
+         chain(row);
+      }
+      index.putInt(4, tableSize);
+      index.putInt(8, chains);
+      index.putInt(0, size);
+   }
+
+
+   // Segment of row.
+   MappedByteBuffer segment(int row)
+   {
+      return(segments.get(row / segmentRows));
+   }
+
+
+   // Byte position of row record in its segment.
+   int position(int row)
+   {
+      return((row % segmentRows) * recordBytes);
+   }
+
+
+   // Hash of row.
+   long getHash(int row)
+   {
+      return(segment(row).getLong(position(row)));
+   }
+
+
+   // Next row in hash chain of row, or -1.
+   int getNext(int row)
+   {
+      return(segment(row).getInt(position(row) + 8));
+   }
+
+
+   // Find index slot for hash: its slot or the empty slot where it belongs.
+   int indexSlot(long hash)
+   {
+      int mask = indexSize - 1;
+      int i    = (int)(hash ^ (hash >>> 32)) & mask;
+
+      while (index.getInt(INDEX_HEADER_BYTES + i * INDEX_SLOT_BYTES + 8) != 0 &&
+             index.getLong(INDEX_HEADER_BYTES + i * INDEX_SLOT_BYTES) != hash)
+      {
+         i = (i + 1) & mask;
+      }
+      return(INDEX_HEADER_BYTES + i * INDEX_SLOT_BYTES);
+   }
+
+
+   // Append row to its hash chain.
+   void chain(int row)
+   {
+      long hash = getHash(row);
+      int  slot = indexSlot(hash);
+      int  last = index.getInt(slot + 12);
+
+      if (last == 0)
+      {
+         index.putLong(slot, hash);
+         index.putInt(slot + 8, row + 1);
+         index.putInt(slot + 12, row + 1);
+         chains++;
+      }
+      else
+      {
+         segment(last - 1).putInt(position(last - 1) + 8, row);
+         index.putInt(slot + 12, row + 1);
+      }
+   }
+
+
+   // Flatten morphognostic into query row, checking layout against the database.
+   public float[] flatten(Morphognostic morphognostic)
+   {
+      if ((template != null) && !layoutChecked)
+      {
+         if (!Arrays.equals(MetamorphVPTree.getNeighborhoodOffsets(morphognostic), offsets))
+         {
+            throw new IllegalArgumentException("Morphognostic layout differs from metamorph database " + path);
+         }
+         layoutChecked = true;
+      }
+      return(super.flatten(morphognostic));
+   }
+
+
+   // Copy densities of row into buffer at offset.
+   public void getRow(int row, float[] buffer, int offset)
+   {
+      segmentFloats.get(row / segmentRows).get((position(row) + RECORD_HEADER_BYTES) / 4, buffer, offset, rowLength);
+   }
+
+
+   // Response of row.
+   public int getResponse(int row)
+   {
+      return(segment(row).getInt(position(row) + 12));
+   }
+
+
+   // Response name of row.
+   public String getResponseName(int row)
+   {
+      return(names.get(segment(row).getInt(position(row) + 16)));
+   }
+
+
+   // Query row equals row?
+   boolean equalQuery(int row)
+   {
+      if (getHash(row) != queryHash)
+      {
+         return(false);
+      }
+      float[] densities = scratch.get();
+      getRow(row, densities, 0);
+      for (int i = 0; i < rowLength; i++)
+      {
+         if (Float.floatToIntBits(query[i]) != Float.floatToIntBits(densities[i]))
+         {
+            return(false);
+         }
+      }
+      return(true);
+   }
+
+
+   // Find first row with morphognostic densities, or -1.
+   public int find(Morphognostic morphognostic)
+   {
+      if (size == 0)
+      {
+         return(-1);
+      }
+      flatten(morphognostic);
+      int row = index.getInt(indexSlot(queryHash) + 8) - 1;
+      while (row != -1 && !equalQuery(row))
+      {
+         row = getNext(row);
+      }
+      return(row);
+   }
+
+
+   // Find next row with densities of last find, or -1.
+   public int findNext(int row)
+   {
+      row = getNext(row);
+      while (row != -1 && !equalQuery(row))
+      {
+         row = getNext(row);
+      }
+      return(row);
+   }
+
+
+   // Append metamorph row for morphognostic, returning row.
+   public int add(Morphognostic morphognostic, int response, String responseName)
+   {
+      if (template == null)
+      {
+         setLayout(morphognostic);
+      }
+      try
+      {
+         reserve(size + 1);
+         Integer nameIndex = nameIndexes.get(responseName);
+         if (nameIndex == null)
+         {
+            byte[] bytes = responseName.getBytes(StandardCharsets.UTF_8);
+            if (namesEnd + 2 + bytes.length > HEADER_BYTES)
+            {
+               throw new IOException("Metamorph database " + path + " cannot add response name \"" + responseName +
+                                     "\": response names exceed the " + HEADER_BYTES + " byte header page");
+            }
+            header.putShort(namesEnd, (short)bytes.length);
+            header.put(namesEnd + 2, bytes);
+            namesEnd += 2 + bytes.length;
+            nameIndex = names.size();
+            names.add(responseName);
+            nameIndexes.put(responseName, nameIndex);
+            header.putInt(20, names.size());
+         }
+
+         // Write record, chain it, then commit size.
+         int              row       = size;
+         float[]          densities = scratch.get();
+         MappedByteBuffer segment   = segment(row);
+         int              p         = position(row);
+         flatten(morphognostic, densities, 0);
+         segment.putLong(p, hash(densities, 0));
+         segment.putInt(p + 8, -1);
+         segment.putInt(p + 12, response);
+         segment.putInt(p + 16, nameIndex);
+         segment.putInt(p + 20, 0);
+         segmentFloats.get(row / segmentRows).put((p + RECORD_HEADER_BYTES) / 4, densities, 0, rowLength);
+         chain(row);
+         size++;
+         header.putInt(12, size);
+         if (chains * 2 > indexSize)
+         {
+            rebuildIndex(indexSize * 2);
+         }
+         else
+         {
+            index.putInt(8, chains);
+            index.putInt(0, size);
+         }
+         return(row);
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+
+   // Matches are not recorded: mapped stores are not evicted.
+   public void match(int row)
+   {
+   }
+
+
+   // Get row match count.
+   public int getMatches(int row)
+   {
+      return(0);
+   }
+
+
+   // Distance from query row to store row.
+   public float distance(float[] query, int row)
+   {
+      float[] densities = scratch.get();
+
+      getRow(row, densities, 0);
+      return(MetamorphDistance.distance(query, densities, 0, offsets));
+   }
+
+
+   // Distance between store rows.
+   public float distance(int row1, int row2)
+   {
+      float[] densities1 = scratch.get();
+      float[] densities2 = scratch2.get();
+
+      getRow(row1, densities1, 0);
+      getRow(row2, densities2, 0);
+      return(MetamorphDistance.distance(densities1, densities2, 0, offsets));
+   }
+
+
+   // Bounded distance from query row to store row: see MetamorphDistance.boundedDistance.
+   public float boundedDistance(float[] query, int row, double bound)
+   {
+      float[] densities = scratch.get();
+
+      getRow(row, densities, 0);
+      return(MetamorphDistance.boundedDistance(query, densities, 0, offsets,
+                                               getNeighborhoodOrder(), bound));
+   }
+
+
+   // Distances of rows from .. to - 1 into scan distances, returning minimum.
+   // Records are copied from the mapping in blocks.
+   float distances(float[] query, int from, int to)
+   {
+      float   minimum = Float.MAX_VALUE;
+      float[] block   = scanBlock.get();
+      int[]   order   = (BOUNDED_DISTANCE ? getNeighborhoodOrder() : null);
+
+      for (int first = from, count; first < to; first += count)
+      {
+         count = Math.min(SCAN_BLOCK_ROWS, to - first);
+         for (int i = 0; i < count; i++)
+         {
+            getRow(first + i, block, i * rowLength);
+         }
+         if (BOUNDED_DISTANCE)
+         {
+            for (int i = 0; i < count; i++)
+            {
+               float d = MetamorphDistance.boundedDistance(query, block, i * rowLength, offsets, order,
+                                                           MetamorphDistance.widenBound(minimum, rowLength));
+               scanDistances[first + i] = d;
+               if (d < minimum)
+               {
+                  minimum = d;
+               }
+            }
+         }
+         else
+         {
+            MetamorphDistance.distances(query, block, 0, count, offsets, scanDistances, first);
+            for (int i = first; i < first + count; i++)
+            {
+               if (scanDistances[i] < minimum)
+               {
+                  minimum = scanDistances[i];
+               }
+            }
+         }
+      }
+      return(minimum);
+   }
+
+
+   // Save: metamorphs persist in the database, so none are written.
+   public void save(DataOutputStream output) throws IOException
+   {
+      force();
+      Utility.saveInt(output, 0);
+   }
+
+
+   // Flush mapped rows, header and index to the file.
+   public void force()
+   {
+      for (MappedByteBuffer segment : segments)
+      {
+         segment.force();
+      }
+      header.force();
+      if (index != null)
+      {
+         index.force();
+      }
+   }
+
+
+   // Close.
+   public void close() throws IOException
+   {
+      if (channel.isOpen())
+      {
+         force();
+         channel.close();
+         file.close();
+      }
+      if (indexChannel != null)
+      {
+         indexChannel.close();
+         indexFile.close();
+      }
+   }
+}
@@ -0,0 +1,470 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Quantized metamorph store.
+// Row densities are kept as float16 codes (2 bytes) or as int8 codes
+// (1 byte) with a scale factor per row neighborhood (maximum magnitude / 127).
+// Distances are computed on the codes against the float query.
+// Row hashes are of the full precision densities, so exact matches are
+// found as before: a row equals the query if its hash and codes are equal.
+// Saved metamorphs carry the decoded densities, so the codes, scales and
+// full precision hashes are saved as row state and restored on load.
+
+package openworm.morphognosis.wormworx;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import morphognosis.Morphognostic;
+import morphognosis.Utility;
+
+public class MetamorphQuantizedStore extends MetamorphStore
+{
+   // Float16 code to float.
+   static final float[] HALF_FLOATS = new float[1 << 16];
+   static
+   {
+      for (int h = 0; h < HALF_FLOATS.length; h++)
+      {
+         int   exponent = (h >>> 10) & 0x1f;
+         int   mantissa = h & 0x3ff;
+         float value;
+         if (exponent == 0)
+         {
+            value = Math.scalb((float)mantissa, -24);
+         }
+         else if (exponent == 31)
+         {
+            value = (mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN);
+         }
+         else
+         {
+            value = Float.intBitsToFloat(((exponent - 15 + 127) << 23) | (mantissa << 13));
+         }
+         HALF_FLOATS[h] = ((h & 0x8000) != 0 ? -value : value);
+      }
+   }
+
+   // Quantization: FLOAT16_QUANTIZATION or INT8_QUANTIZATION.
+   int quantization;
+
+   // Codes and int8 neighborhood scales.
+   short[] halfCodes;
+   byte[]  byteCodes;
+   float[] scales;
+
+   // Query codes for exact matching.
+   short[] queryHalfCodes;
+   byte[]  queryByteCodes;
+   float[] queryScales;
+
+   // Scratch row.
+   ThreadLocal<float[]> scratch;
+
+   // Constructor.
+   public MetamorphQuantizedStore(int quantization)
+   {
+      this.quantization = quantization;
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      super.clear();
+      halfCodes      = null;
+      byteCodes      = null;
+      scales         = null;
+      queryHalfCodes = null;
+      queryByteCodes = null;
+      queryScales    = null;
+      scratch        = ThreadLocal.withInitial(() -> new float[rowLength]);
+   }
+
+
+   // Float to float16 code, rounding to nearest even.
+   public static short floatToHalf(float value)
+   {
+      int bits     = Float.floatToIntBits(value);
+      int sign     = (bits >>> 16) & 0x8000;
+      int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+      int mantissa = bits & 0x7fffff;
+
+      if (exponent >= 31)
+      {
+         if ((((bits >>> 23) & 0xff) == 0xff) && (mantissa != 0))
+         {
+            return((short)(sign | 0x7e00));
+         }
+         return((short)(sign | 0x7c00));
+      }
+      int shift;
+      int half;
+      if (exponent <= 0)
+      {
+         // Subnormal.
+         if (exponent < -10)
+         {
+            return((short)sign);
+         }
+         mantissa |= 0x800000;
+         shift     = 14 - exponent;
+         half      = mantissa >> shift;
+      }
+      else
+      {
+         shift = 13;
+         half  = (exponent << 10) | (mantissa >> shift);
+      }
+      int remainder = mantissa & ((1 << shift) - 1);
+      int middle    = 1 << (shift - 1);
+      if ((remainder > middle) || ((remainder == middle) && ((half & 1) != 0)))
+      {
+         half++;
+      }
+      return((short)(sign | half));
+   }
+
+
+   // Float16 code to float.
+   public static float halfToFloat(short code)
+   {
+      return(HALF_FLOATS[code & 0xffff]);
+   }
+
+
+   // Bytes of densities per row.
+   public int densityBytes()
+   {
+      if (quantization == INT8_QUANTIZATION)
+      {
+         return(rowLength + offsets.length * 4);
+      }
+      return(rowLength * 2);
+   }
+
+
+   // Grow code rows to capacity.
+   void growDensities(int capacity)
+   {
+      if (quantization == INT8_QUANTIZATION)
+      {
+         if (byteCodes == null)
+         {
+            byteCodes      = new byte[capacity * rowLength];
+            scales         = new float[capacity * offsets.length];
+            queryByteCodes = new byte[rowLength];
+            queryScales    = new float[offsets.length];
+         }
+         else
+         {
+            byteCodes = Arrays.copyOf(byteCodes, capacity * rowLength);
+            scales    = Arrays.copyOf(scales, capacity * offsets.length);
+         }
+      }
+      else
+      {
+         if (halfCodes == null)
+         {
+            halfCodes      = new short[capacity * rowLength];
+            queryHalfCodes = new short[rowLength];
+         }
+         else
+         {
+            halfCodes = Arrays.copyOf(halfCodes, capacity * rowLength);
+         }
+      }
+   }
+
+
+   // Encode densities into codes at row (and int8 scales at row neighborhoods).
+   void encode(float[] densities, short[] halfCodes, byte[] byteCodes, float[] scales, int row)
+   {
+      int base = row * rowLength;
+
+      if (quantization == INT8_QUANTIZATION)
+      {
+         for (int i = 0, j = 0; i < offsets.length; i++)
+         {
+            float maximum = 0.0f;
+            for (int k = j; k < offsets[i]; k++)
+            {
+               maximum = Math.max(maximum, Math.abs(densities[k]));
+            }
+            float scale = maximum / 127.0f;
+            scales[row * offsets.length + i] = scale;
+            for ( ; j < offsets[i]; j++)
+            {
+               byteCodes[base + j] = (byte)(scale > 0.0f ? Math.round(densities[j] / scale) : 0);
+            }
+         }
+      }
+      else
+      {
+         for (int j = 0; j < rowLength; j++)
+         {
+            halfCodes[base + j] = floatToHalf(densities[j]);
+         }
+      }
+   }
+
+
+   // Flatten morphognostic and encode into row codes, returning full precision density hash.
+   long putRow(int row, Morphognostic morphognostic)
+   {
+      float[] densities = scratch.get();
+
+      flatten(morphognostic, densities, 0);
+      encode(densities, halfCodes, byteCodes, scales, row);
+      return(hash(densities, 0));
+   }
+
+
+   // Move codes of row to row to.
+   void moveDensities(int row, int to)
+   {
+      if (quantization == INT8_QUANTIZATION)
+      {
+         System.arraycopy(byteCodes, row * rowLength, byteCodes, to * rowLength, rowLength);
+         System.arraycopy(scales, row * offsets.length, scales, to * offsets.length, offsets.length);
+      }
+      else
+      {
+         System.arraycopy(halfCodes, row * rowLength, halfCodes, to * rowLength, rowLength);
+      }
+   }
+
+
+   // Decode densities of row into buffer at offset.
+   public void getRow(int row, float[] buffer, int offset)
+   {
+      int base = row * rowLength;
+
+      if (quantization == INT8_QUANTIZATION)
+      {
+         for (int i = 0, j = 0; i < offsets.length; i++)
+         {
+            float scale = scales[row * offsets.length + i];
+            for ( ; j < offsets[i]; j++)
+            {
+               buffer[offset + j] = (float)byteCodes[base + j] * scale;
+            }
+         }
+      }
+      else
+      {
+         for (int j = 0; j < rowLength; j++)
+         {
+            buffer[offset + j] = HALF_FLOATS[halfCodes[base + j] & 0xffff];
+         }
+      }
+   }
+
+
+   // Query row equals row: equal full precision hashes and codes.
+   boolean equalQuery(int row)
+   {
+      if (hashes[row] != queryHash)
+      {
+         return(false);
+      }
+      int base = row * rowLength;
+      if (quantization == INT8_QUANTIZATION)
+      {
+         encode(query, null, queryByteCodes, queryScales, 0);
+         for (int i = 0; i < offsets.length; i++)
+         {
+            if (Float.floatToIntBits(queryScales[i]) != Float.floatToIntBits(scales[row * offsets.length + i]))
+            {
+               return(false);
+            }
+         }
+         for (int j = 0; j < rowLength; j++)
+         {
+            if (queryByteCodes[j] != byteCodes[base + j])
+            {
+               return(false);
+            }
+         }
+      }
+      else
+      {
+         encode(query, queryHalfCodes, null, null, 0);
+         for (int j = 0; j < rowLength; j++)
+         {
+            if (queryHalfCodes[j] != halfCodes[base + j])
+            {
+               return(false);
+            }
+         }
+      }
+      return(true);
+   }
+
+
+   // Distance from query row to row codes.
+   public float distance(float[] query, int row)
+   {
+      return(boundedDistance(query, row, null, Double.MAX_VALUE));
+   }
+
+
+   // Distance between rows.
+   public float distance(int row1, int row2)
+   {
+      float[] densities = scratch.get();
+
+      getRow(row1, densities, 0);
+      return(distance(densities, row2));
+   }
+
+
+   // Bounded distance from query row to row codes: see MetamorphDistance.boundedDistance.
+   public float boundedDistance(float[] query, int row, double bound)
+   {
+      return(boundedDistance(query, row, getNeighborhoodOrder(), bound));
+   }
+
+
+   // Bounded distance from query row to row codes, summing neighborhoods
+   // in order (or in row order if null).
+   float boundedDistance(float[] query, int row, int[] order, double bound)
+   {
+      int   base = row * rowLength;
+      float dist = 0.0f;
+
+      for (int n = 0; n < offsets.length; n++)
+      {
+         int   i   = (order == null ? n : order[n]);
+         int   j   = (i == 0 ? 0 : offsets[i - 1]);
+         int   end = offsets[i];
+         float d   = 0.0f;
+         if (quantization == INT8_QUANTIZATION)
+         {
+            float scale = scales[row * offsets.length + i];
+            for ( ; j < end; j++)
+            {
+               d += Math.abs(query[j] - (float)byteCodes[base + j] * scale);
+            }
+         }
+         else
+         {
+            for ( ; j < end; j++)
+            {
+               d += Math.abs(query[j] - HALF_FLOATS[halfCodes[base + j] & 0xffff]);
+            }
+         }
+         dist += d;
+         if ((double)dist > bound)
+         {
+            break;
+         }
+      }
+      return(dist);
+   }
+
+
+   // Save quantization, layout, full precision row hashes, and codes and scales.
+   public void saveRowState(DataOutputStream output) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream      state = new DataOutputStream(bytes);
+
+      Utility.saveInt(state, quantization);
+      Utility.saveInt(state, size);
+      Utility.saveInt(state, rowLength);
+      for (int row = 0; row < size; row++)
+      {
+         state.writeLong(hashes[row]);
+      }
+      if (quantization == INT8_QUANTIZATION)
+      {
+         state.write(byteCodes, 0, size * rowLength);
+         for (int i = 0, j = size * offsets.length; i < j; i++)
+         {
+            Utility.saveFloat(state, scales[i]);
+         }
+      }
+      else
+      {
+         for (int i = 0, j = size * rowLength; i < j; i++)
+         {
+            state.writeShort(halfCodes[i]);
+         }
+      }
+      state.flush();
+      Utility.saveInt(output, bytes.size());
+      bytes.writeTo(output);
+   }
+
+
+   // Restore saved row state over the loaded rows if it has the same quantization,
+   // rows and layout; rows loaded from decoded densities are kept otherwise.
+   public void loadRowState(DataInputStream input) throws IOException
+   {
+      int n = Utility.loadInt(input);
+
+      byte[] bytes = new byte[n];
+      input.readFully(bytes);
+      if (n == 0)
+      {
+         return;
+      }
+      DataInputStream state = new DataInputStream(new ByteArrayInputStream(bytes));
+      if ((Utility.loadInt(state) != quantization) || (Utility.loadInt(state) != size) ||
+          (Utility.loadInt(state) != rowLength) || (size == 0))
+      {
+         return;
+      }
+      for (int row = 0; row < size; row++)
+      {
+         hashes[row] = state.readLong();
+      }
+      if (quantization == INT8_QUANTIZATION)
+      {
+         state.readFully(byteCodes, 0, size * rowLength);
+         for (int i = 0, j = size * offsets.length; i < j; i++)
+         {
+            scales[i] = Utility.loadFloat(state);
+         }
+      }
+      else
+      {
+         for (int i = 0, j = size * rowLength; i < j; i++)
+         {
+            halfCodes[i] = state.readShort();
+         }
+      }
+      rechain();
+   }
+
+
+   // Distances of rows from .. to - 1 into scan distances, returning minimum.
+   float distances(float[] query, int from, int to)
+   {
+      float minimum = Float.MAX_VALUE;
+      int[] order   = (BOUNDED_DISTANCE ? getNeighborhoodOrder() : null);
+
+      for (int row = from; row < to; row++)
+      {
+         float d;
+         if (BOUNDED_DISTANCE)
+         {
+            d = boundedDistance(query, row, order, MetamorphDistance.widenBound(minimum, rowLength));
+         }
+         else
+         {
+            d = distance(query, row);
+         }
+         scanDistances[row] = d;
+         if (d < minimum)
+         {
+            minimum = d;
+         }
+      }
+      return(minimum);
+   }
+}
@@ -0,0 +1,445 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Metamorph store with shared neighborhood density blocks.
+// Metamorphs from a segment usually differ only in their fine neighborhoods,
+// while the coarse long-epoch neighborhoods repeat. Each row therefore refers,
+// per neighborhood, to an immutable density block interned by content hash,
+// with reference counts so that evicted rows release their blocks.
+// Row distances sum the same neighborhood densities in the same order, so they
+// are identical to the unshared store. A scan computes the query distance to
+// each distinct block once and sums block distances per row.
+
+package openworm.morphognosis.wormworx;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import morphognosis.Morphognostic;
+
+public class MetamorphSharedStore extends MetamorphStore
+{
+   // Neighborhood block lengths and starts.
+   int[] blockLengths;
+   int[] blockStarts;
+
+   // Per neighborhood blocks: densities, hashes, hash chain links and reference counts.
+   float[][] blocks;
+   long[][]  blockHashes;
+   int[][]   blockNext;
+   int[][]   blockRefs;
+   int[]     numBlocks;
+
+   // Per neighborhood block hash to first block in chain, and freed blocks.
+   HashMap<Long, Integer>[] blockTables;
+   int[][] freeBlocks;
+   int[]   numFreeBlocks;
+
+   // Row blocks [row * neighborhoods + neighborhood].
+   int[] rowBlocks;
+
+   // Scan query distances to blocks.
+   float[][] blockDistances;
+
+   // Scratch row.
+   ThreadLocal<float[]> scratch;
+
+   // Constructor.
+   public MetamorphSharedStore()
+   {
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      super.clear();
+      blockLengths   = null;
+      blockStarts    = null;
+      blocks         = null;
+      blockHashes    = null;
+      blockNext      = null;
+      blockRefs      = null;
+      numBlocks      = null;
+      blockTables    = null;
+      freeBlocks     = null;
+      numFreeBlocks  = null;
+      rowBlocks      = null;
+      blockDistances = null;
+      scratch        = ThreadLocal.withInitial(() -> new float[rowLength]);
+   }
+
+
+   // Shared density blocks.
+   public int getNumBlocks()
+   {
+      int n = 0;
+
+      for (int i = 0; numBlocks != null && i < numBlocks.length; i++)
+      {
+         n += numBlocks[i] - numFreeBlocks[i];
+      }
+      return(n);
+   }
+
+
+   // Bytes of shared densities and row block references.
+   public long getBytes()
+   {
+      long bytes = (long)size * (long)offsets.length * 4;
+
+      for (int i = 0; numBlocks != null && i < numBlocks.length; i++)
+      {
+         bytes += (long)(numBlocks[i] - numFreeBlocks[i]) * (long)blockLengths[i] * 4;
+      }
+      return(bytes);
+   }
+
+
+   // Bytes of densities per row: shared bytes averaged over rows, or full densities while empty.
+   public int densityBytes()
+   {
+      if (size == 0)
+      {
+         return(rowLength * 4);
+      }
+      return((int)((getBytes() + size - 1) / size));
+   }
+
+
+   // Grow row blocks to capacity, allocating block tables on layout.
+   @SuppressWarnings({ "unchecked", "rawtypes" })
+   void growDensities(int capacity)
+   {
+      int n = offsets.length;
+
+      if (rowBlocks == null)
+      {
+         blockLengths  = new int[n];
+         blockStarts   = new int[n];
+         blocks        = new float[n][];
+         blockHashes   = new long[n][];
+         blockNext     = new int[n][];
+         blockRefs     = new int[n][];
+         numBlocks     = new int[n];
+         blockTables   = new HashMap[n];
+         freeBlocks    = new int[n][];
+         numFreeBlocks = new int[n];
+         for (int i = 0; i < n; i++)
+         {
+            blockStarts[i]  = (i == 0 ? 0 : offsets[i - 1]);
+            blockLengths[i] = offsets[i] - blockStarts[i];
+            blocks[i]       = new float[INITIAL_CAPACITY * blockLengths[i]];
+            blockHashes[i]  = new long[INITIAL_CAPACITY];
+            blockNext[i]    = new int[INITIAL_CAPACITY];
+            blockRefs[i]    = new int[INITIAL_CAPACITY];
+            blockTables[i]  = new HashMap<Long, Integer>();
+            freeBlocks[i]   = new int[INITIAL_CAPACITY];
+         }
+         rowBlocks = new int[capacity * n];
+      }
+      else
+      {
+         rowBlocks = Arrays.copyOf(rowBlocks, capacity * n);
+      }
+   }
+
+
+   // Hash of block densities.
+   static long blockHash(float[] densities, int start, int length)
+   {
+      long hash = 0xcbf29ce484222325L;
+
+      for (int i = start, j = start + length; i < j; i++)
+      {
+         hash ^= Float.floatToIntBits(densities[i]);
+         hash *= 0x100000001b3L;
+      }
+      return(hash);
+   }
+
+
+   // Block of neighborhood equals densities at start?
+   boolean equalBlock(int neighborhood, int block, float[] densities, int start)
+   {
+      float[] values = blocks[neighborhood];
+
+      for (int i = block * blockLengths[neighborhood], j = start, k = start + blockLengths[neighborhood];
+           j < k; i++, j++)
+      {
+         if (Float.floatToIntBits(values[i]) != Float.floatToIntBits(densities[j]))
+         {
+            return(false);
+         }
+      }
+      return(true);
+   }
+
+
+   // Intern neighborhood densities of row, returning referenced block.
+   int intern(int neighborhood, float[] densities)
+   {
+      int     i     = neighborhood;
+      int     start = blockStarts[i];
+      int     n     = blockLengths[i];
+      long    hash  = blockHash(densities, start, n);
+      Integer first = blockTables[i].get(hash);
+
+      for (int block = (first == null ? -1 : first); block != -1; block = blockNext[i][block])
+      {
+         if (equalBlock(i, block, densities, start))
+         {
+            blockRefs[i][block]++;
+            return(block);
+         }
+      }
+      int block;
+      if (numFreeBlocks[i] > 0)
+      {
+         block = freeBlocks[i][--numFreeBlocks[i]];
+      }
+      else
+      {
+         block = numBlocks[i]++;
+         if (block == blockHashes[i].length)
+         {
+            int m = block * 2;
+            blocks[i]      = Arrays.copyOf(blocks[i], m * n);
+            blockHashes[i] = Arrays.copyOf(blockHashes[i], m);
+            blockNext[i]   = Arrays.copyOf(blockNext[i], m);
+            blockRefs[i]   = Arrays.copyOf(blockRefs[i], m);
+         }
+      }
+      System.arraycopy(densities, start, blocks[i], block * n, n);
+      blockHashes[i][block] = hash;
+      blockNext[i][block]   = (first == null ? -1 : first);
+      blockRefs[i][block]   = 1;
+      blockTables[i].put(hash, block);
+      return(block);
+   }
+
+
+   // Release reference to neighborhood block, freeing it when unreferenced.
+   void release(int neighborhood, int block)
+   {
+      int i = neighborhood;
+
+      if (--blockRefs[i][block] > 0)
+      {
+         return;
+      }
+      long hash  = blockHashes[i][block];
+      int  first = blockTables[i].get(hash);
+      if (first == block)
+      {
+         if (blockNext[i][block] == -1)
+         {
+            blockTables[i].remove(hash);
+         }
+         else
+         {
+            blockTables[i].put(hash, blockNext[i][block]);
+         }
+      }
+      else
+      {
+         int previous = first;
+         while (blockNext[i][previous] != block)
+         {
+            previous = blockNext[i][previous];
+         }
+         blockNext[i][previous] = blockNext[i][block];
+      }
+      if (numFreeBlocks[i] == freeBlocks[i].length)
+      {
+         freeBlocks[i] = Arrays.copyOf(freeBlocks[i], numFreeBlocks[i] * 2);
+      }
+      freeBlocks[i][numFreeBlocks[i]++] = block;
+   }
+
+
+   // Flatten morphognostic and intern its neighborhoods into row, returning density hash.
+   long putRow(int row, Morphognostic morphognostic)
+   {
+      float[] densities = scratch.get();
+      int     n         = offsets.length;
+
+      flatten(morphognostic, densities, 0);
+      for (int i = 0; i < n; i++)
+      {
+         rowBlocks[row * n + i] = intern(i, densities);
+      }
+      return(hash(densities, 0));
+   }
+
+
+   // Move block references of row to row to.
+   void moveDensities(int row, int to)
+   {
+      int n = offsets.length;
+
+      System.arraycopy(rowBlocks, row * n, rowBlocks, to * n, n);
+   }
+
+
+   // Release blocks of evicted row.
+   void evicted(int row)
+   {
+      int n = offsets.length;
+
+      for (int i = 0; i < n; i++)
+      {
+         release(i, rowBlocks[row * n + i]);
+      }
+   }
+
+
+   // Copy densities of row into buffer at offset.
+   public void getRow(int row, float[] buffer, int offset)
+   {
+      int n = offsets.length;
+
+      for (int i = 0; i < n; i++)
+      {
+         System.arraycopy(blocks[i], rowBlocks[row * n + i] * blockLengths[i],
+                          buffer, offset + blockStarts[i], blockLengths[i]);
+      }
+   }
+
+
+   // Query row equals row?
+   boolean equalQuery(int row)
+   {
+      if (hashes[row] != queryHash)
+      {
+         return(false);
+      }
+      int n = offsets.length;
+      for (int i = 0; i < n; i++)
+      {
+         if (!equalBlock(i, rowBlocks[row * n + i], query, blockStarts[i]))
+         {
+            return(false);
+         }
+      }
+      return(true);
+   }
+
+
+   // Distance from query to neighborhood block.
+   float blockDistance(float[] query, int neighborhood, int block)
+   {
+      float[] values = blocks[neighborhood];
+      float   d      = 0.0f;
+
+      for (int i = block * blockLengths[neighborhood], j = blockStarts[neighborhood], k = offsets[neighborhood];
+           j < k; i++, j++)
+      {
+         d += Math.abs(query[j] - values[i]);
+      }
+      return(d);
+   }
+
+
+   // Distance from query row to store row.
+   public float distance(float[] query, int row)
+   {
+      int   n    = offsets.length;
+      float dist = 0.0f;
+
+      for (int i = 0; i < n; i++)
+      {
+         dist += blockDistance(query, i, rowBlocks[row * n + i]);
+      }
+      return(dist);
+   }
+
+
+   // Distance between store rows: shared blocks are at distance zero.
+   public float distance(int row1, int row2)
+   {
+      int   n    = offsets.length;
+      float dist = 0.0f;
+
+      for (int i = 0; i < n; i++)
+      {
+         int block1 = rowBlocks[row1 * n + i];
+         int block2 = rowBlocks[row2 * n + i];
+         if (block1 != block2)
+         {
+            float[] values = blocks[i];
+            float   d      = 0.0f;
+            for (int j = block1 * blockLengths[i], k = block2 * blockLengths[i], m = j + blockLengths[i];
+                 j < m; j++, k++)
+            {
+               d += Math.abs(values[j] - values[k]);
+            }
+            dist += d;
+         }
+      }
+      return(dist);
+   }
+
+
+   // Bounded distance from query row to store row: see MetamorphDistance.boundedDistance.
+   public float boundedDistance(float[] query, int row, double bound)
+   {
+      int   n    = offsets.length;
+      float dist = 0.0f;
+
+      for (int i : getNeighborhoodOrder())
+      {
+         dist += blockDistance(query, i, rowBlocks[row * n + i]);
+         if ((double)dist > bound)
+         {
+            break;
+         }
+      }
+      return(dist);
+   }
+
+
+   // Compute query distances to all blocks with the batched distance kernel.
+   void prepareScan(float[] query)
+   {
+      int     n       = offsets.length;
+      float[] segment = scratch.get();
+
+      if (blockDistances == null)
+      {
+         blockDistances = new float[n][];
+      }
+      for (int i = 0; i < n; i++)
+      {
+         if ((blockDistances[i] == null) || (blockDistances[i].length < numBlocks[i]))
+         {
+            blockDistances[i] = new float[blockHashes[i].length];
+         }
+         System.arraycopy(query, blockStarts[i], segment, 0, blockLengths[i]);
+         MetamorphDistance.distances(segment, blocks[i], 0, numBlocks[i],
+                                     new int[] { blockLengths[i] }, blockDistances[i]);
+      }
+   }
+
+
+   // Distances of rows from .. to - 1 into scan distances from block distances, returning minimum.
+   float distances(float[] query, int from, int to)
+   {
+      int   n       = offsets.length;
+      float minimum = Float.MAX_VALUE;
+
+      for (int row = from; row < to; row++)
+      {
+         float dist = 0.0f;
+         for (int i = 0, j = row * n; i < n; i++, j++)
+         {
+            dist += blockDistances[i][rowBlocks[j]];
+         }
+         scanDistances[row] = dist;
+         if (dist < minimum)
+         {
+            minimum = dist;
+         }
+      }
+      return(minimum);
+   }
+}
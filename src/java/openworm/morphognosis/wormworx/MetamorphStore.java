@@ -0,0 +1,1041 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Compact metamorph store.
+// Each morphognostic is kept as one row of sector densities in a shared float
+// array, in Morphognostic.compare order, with its response and response name index.
+// Rows are located by a 64-bit density hash with exact equality checking.
+// Metamorphs are rehydrated only on demand; sector events are not stored.
+// The store may be bounded by row count or bytes: when full, a batch of rows
+// is evicted by policy (least recently matched, least frequently matched, or
+// oldest) and the remaining rows are compacted in order. Indexes over rows
+// detect the eviction by the store generation and rebuild.
+
+package openworm.morphognosis.wormworx;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import morphognosis.Metamorph;
+import morphognosis.Morphognostic;
+import morphognosis.Utility;
+
+public class MetamorphStore
+{
+   // Initial row capacity.
+   public static final int INITIAL_CAPACITY = 64;
+
+   // Rows per parallel scan task.
+   public static final int PARALLEL_SCAN_BLOCK = 4096;
+
+   // Minimum rows for parallel scan.
+   public static int PARALLEL_SCAN_THRESHOLD = 50000;
+
+   // Abandon distances early once they exceed the best distance so far.
+   public static boolean BOUNDED_DISTANCE = true;
+
+   // Row pairs sampled to order neighborhoods for bounded distances.
+   public static final int NEIGHBORHOOD_ORDER_SAMPLES = 256;
+
+   // Maximum rows and bytes: 0 is unbounded.
+   public static int  MAX_ROWS  = 0;
+   public static long MAX_BYTES = 0;
+
+   // Density quantization of heap stores: see MetamorphQuantizedStore.
+   public static final int NO_QUANTIZATION      = 0;
+   public static final int FLOAT16_QUANTIZATION = 1;
+   public static final int INT8_QUANTIZATION    = 2;
+   public static int       QUANTIZATION         = NO_QUANTIZATION;
+
+   // Share identical neighborhood density blocks between heap store rows:
+   // see MetamorphSharedStore.
+   public static boolean SHARE_NEIGHBORHOODS = false;
+
+   // Eviction policies.
+   public static final int LRU_EVICTION    = 0;
+   public static final int LFU_EVICTION    = 1;
+   public static final int OLDEST_EVICTION = 2;
+   public static int       EVICTION        = LRU_EVICTION;
+
+   // Fraction of maximum rows evicted when full.
+   public static float EVICTION_FRACTION = 0.125f;
+
+   // Per row bytes besides densities: response, name, hash, chain and match counters,
+   // and hash table slots.
+   public static final int ROW_OVERHEAD_BYTES = 40 + 32;
+
+   // Cleared morphognostic with store layout, for rehydration.
+   Morphognostic template;
+
+   // Row layout: length, neighborhood end offsets, and per neighborhood
+   // the sector (x * n + y) at each rectified position.
+   int     rowLength;
+   int[]   offsets;
+   int[][] sectorOrder;
+
+   // Rows.
+   int     size;
+   int     capacity;
+   float[] densities;
+   int[]   responses;
+   int[]   responseNames;
+   long[]  hashes;
+   int[]   next;
+
+   // Row match counts and last match (or add) clock.
+   int[]   matches;
+   long[]  matchTimes;
+   long    clock;
+
+   // Maximum rows and eviction generation.
+   int     maxRows;
+   int     generation;
+
+   // Response names.
+   ArrayList<String>        names;
+   HashMap<String, Integer> nameIndexes;
+
+   // Open addressing table of hash to first and last rows of hash chain.
+   long[] tableHashes;
+   int[]  tableFirst;
+   int[]  tableLast;
+   int    tableSize;
+
+   // Query row.
+   float[] query;
+   long    queryHash;
+
+   // Scan distances.
+   float[] scanDistances;
+
+   // Neighborhood order for bounded distances, and store size it was computed at.
+   int[] neighborhoodOrder;
+   int   neighborhoodOrderSize;
+
+   // Constructor.
+   public MetamorphStore()
+   {
+      names       = new ArrayList<String>();
+      nameIndexes = new HashMap<String, Integer>();
+      clear();
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      template      = null;
+      rowLength     = 0;
+      offsets       = null;
+      sectorOrder   = null;
+      size          = 0;
+      capacity      = 0;
+      densities     = null;
+      responses     = null;
+      responseNames = null;
+      hashes        = null;
+      next          = null;
+      matches       = null;
+      matchTimes    = null;
+      clock         = 0;
+      maxRows       = 0;
+      generation++;
+      query         = null;
+      scanDistances = null;
+      neighborhoodOrder     = null;
+      neighborhoodOrderSize = 0;
+      names.clear();
+      nameIndexes.clear();
+      tableHashes = null;
+      tableFirst  = null;
+      tableLast   = null;
+      tableSize   = 0;
+   }
+
+
+   // Size.
+   public int size()
+   {
+      return(size);
+   }
+
+
+   // Maximum rows, or 0 if unbounded.
+   public int maxRows()
+   {
+      return(maxRows);
+   }
+
+
+   // Generation: incremented when rows are evicted or cleared, invalidating row indexes.
+   public int generation()
+   {
+      return(generation);
+   }
+
+
+   // Row length.
+   public int rowLength()
+   {
+      return(rowLength);
+   }
+
+
+   // Neighborhood row end offsets.
+   public int[] getOffsets()
+   {
+      return(offsets);
+   }
+
+
+   // Densities of all rows: row i starts at i * rowLength().
+   public float[] getDensities()
+   {
+      return(densities);
+   }
+
+
+   // Bytes of densities per row.
+   public int densityBytes()
+   {
+      return(rowLength * 4);
+   }
+
+
+   // Grow density rows to capacity.
+   void growDensities(int capacity)
+   {
+      if (densities == null)
+      {
+         densities = new float[capacity * rowLength];
+      }
+      else
+      {
+         densities = Arrays.copyOf(densities, capacity * rowLength);
+      }
+   }
+
+
+   // Flatten morphognostic into row densities, returning their hash.
+   long putRow(int row, Morphognostic morphognostic)
+   {
+      flatten(morphognostic, densities, row * rowLength);
+      return(hash(densities, row * rowLength));
+   }
+
+
+   // Move densities of row to row to.
+   void moveDensities(int row, int to)
+   {
+      System.arraycopy(densities, row * rowLength, densities, to * rowLength, rowLength);
+   }
+
+
+   // Copy densities of row into buffer at offset.
+   public void getRow(int row, float[] buffer, int offset)
+   {
+      System.arraycopy(densities, row * rowLength, buffer, offset, rowLength);
+   }
+
+
+   // Rows are persistent (kept outside the heap across runs)?
+   public boolean isPersistent()
+   {
+      return(false);
+   }
+
+
+   // Close: flush persistent rows.
+   public void close() throws IOException
+   {
+   }
+
+
+   // Response of row.
+   public int getResponse(int row)
+   {
+      return(responses[row]);
+   }
+
+
+   // Response name of row.
+   public String getResponseName(int row)
+   {
+      return(names.get(responseNames[row]));
+   }
+
+
+   // Set layout from morphognostic.
+   void setLayout(Morphognostic morphognostic)
+   {
+      template = morphognostic.clone();
+      template.clear();
+      offsets     = MetamorphVPTree.getNeighborhoodOffsets(morphognostic);
+      rowLength   = offsets[offsets.length - 1];
+      sectorOrder = new int[template.NUM_NEIGHBORHOODS][];
+      for (int i = 0; i < template.NUM_NEIGHBORHOODS; i++)
+      {
+         // Mark sectors and read back their rectified order.
+         Morphognostic.Neighborhood neighborhood = template.neighborhoods.get(i);
+         int n = neighborhood.sectors.length;
+         for (int x = 0; x < n; x++)
+         {
+            for (int y = 0; y < n; y++)
+            {
+               neighborhood.sectors[x][y].typeDensities[0][0] = (float)(x * n + y);
+            }
+         }
+         float[][][] rectified = neighborhood.rectifySectorTypeDensities();
+         sectorOrder[i] = new int[n * n];
+         for (int s = 0; s < n * n; s++)
+         {
+            sectorOrder[i][s] = (int)rectified[s][0][0];
+         }
+      }
+      template.clear();
+      query = new float[rowLength];
+      allocate();
+   }
+
+
+   // Maximum rows by row and byte limits, or 0 if unbounded.
+   int rowLimit()
+   {
+      int limit = MAX_ROWS;
+
+      if (MAX_BYTES > 0)
+      {
+         long rows = MAX_BYTES / ((long)densityBytes() + ROW_OVERHEAD_BYTES);
+         rows = Math.max(1, Math.min(rows, Integer.MAX_VALUE));
+         if ((limit == 0) || (rows < limit))
+         {
+            limit = (int)rows;
+         }
+      }
+      return(limit);
+   }
+
+
+   // Allocate rows and hash table for layout.
+   void allocate()
+   {
+      maxRows       = rowLimit();
+      capacity      = INITIAL_CAPACITY;
+      if (maxRows > 0)
+      {
+         capacity = Math.min(capacity, maxRows);
+      }
+      growDensities(capacity);
+      responses     = new int[capacity];
+      responseNames = new int[capacity];
+      hashes        = new long[capacity];
+      next          = new int[capacity];
+      matches       = new int[capacity];
+      matchTimes    = new long[capacity];
+      tableSize     = INITIAL_CAPACITY * 2;
+      tableHashes   = new long[tableSize];
+      tableFirst    = new int[tableSize];
+      tableLast     = new int[tableSize];
+      Arrays.fill(tableFirst, -1);
+   }
+
+
+   // Flatten morphognostic densities into row in store order.
+   public void flatten(Morphognostic morphognostic, float[] row, int offset)
+   {
+      int p = offset;
+
+      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+      {
+         Morphognostic.Neighborhood.Sector[][] sectors = morphognostic.neighborhoods.get(i).sectors;
+         int   n     = sectors.length;
+         int[] order = sectorOrder[i];
+         for (int s = 0; s < order.length; s++)
+         {
+            float[][] typeDensities = sectors[order[s] / n][order[s] % n].typeDensities;
+            for (int d = 0; d < morphognostic.eventDimensions; d++)
+            {
+               float[] values = typeDensities[d];
+               for (int j = 0; j < morphognostic.numEventTypes[d]; j++)
+               {
+                  row[p++] = values[j];
+               }
+            }
+         }
+      }
+   }
+
+
+   // Flatten morphognostic into query row, returning it.
+   public float[] flatten(Morphognostic morphognostic)
+   {
+      if (template == null)
+      {
+         setLayout(morphognostic);
+      }
+      flatten(morphognostic, query, 0);
+      queryHash = hash(query, 0);
+      return(query);
+   }
+
+
+   // Hash row densities.
+   // 64-bit FNV-1a over density bits with a final avalanche mix.
+   long hash(float[] row, int offset)
+   {
+      long hash = 0xcbf29ce484222325L;
+
+      for (int i = offset, j = offset + rowLength; i < j; i++)
+      {
+         hash ^= Float.floatToIntBits(row[i]);
+         hash *= 0x100000001b3L;
+      }
+      hash ^= (hash >>> 33);
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= (hash >>> 33);
+      hash *= 0xc4ceb9fe1a85ec53L;
+      hash ^= (hash >>> 33);
+      return(hash);
+   }
+
+
+   // Find table slot for hash: its slot or the empty slot where it belongs.
+   int slot(long hash)
+   {
+      int mask = tableSize - 1;
+      int i    = (int)(hash ^ (hash >>> 32)) & mask;
+
+      while (tableFirst[i] != -1 && tableHashes[i] != hash)
+      {
+         i = (i + 1) & mask;
+      }
+      return(i);
+   }
+
+
+   // Query row equals row?
+   boolean equalQuery(int row)
+   {
+      if (hashes[row] != queryHash)
+      {
+         return(false);
+      }
+      for (int i = 0, j = row * rowLength; i < rowLength; i++, j++)
+      {
+         if (Float.floatToIntBits(query[i]) != Float.floatToIntBits(densities[j]))
+         {
+            return(false);
+         }
+      }
+      return(true);
+   }
+
+
+   // Find first row with morphognostic densities, or -1.
+   public int find(Morphognostic morphognostic)
+   {
+      if (size == 0)
+      {
+         return(-1);
+      }
+      flatten(morphognostic);
+      int row = tableFirst[slot(queryHash)];
+      while (row != -1 && !equalQuery(row))
+      {
+         row = next[row];
+      }
+      return(row);
+   }
+
+
+   // Find next row with densities of last find, or -1.
+   public int findNext(int row)
+   {
+      row = next[row];
+      while (row != -1 && !equalQuery(row))
+      {
+         row = next[row];
+      }
+      return(row);
+   }
+
+
+   // Add metamorph row for morphognostic, returning row.
+   public int add(Morphognostic morphognostic, int response, String responseName)
+   {
+      if (template == null)
+      {
+         setLayout(morphognostic);
+      }
+      if ((maxRows > 0) && (size >= maxRows))
+      {
+         // Densities per row can change as rows are added, so renew the byte limit.
+         maxRows = rowLimit();
+         while (size >= maxRows)
+         {
+            evict();
+         }
+      }
+      if (size == capacity)
+      {
+         capacity     *= 2;
+         if (maxRows > 0)
+         {
+            capacity = Math.min(capacity, maxRows);
+         }
+         growDensities(capacity);
+         responses     = Arrays.copyOf(responses, capacity);
+         responseNames = Arrays.copyOf(responseNames, capacity);
+         hashes        = Arrays.copyOf(hashes, capacity);
+         next          = Arrays.copyOf(next, capacity);
+         matches       = Arrays.copyOf(matches, capacity);
+         matchTimes    = Arrays.copyOf(matchTimes, capacity);
+      }
+      int row = size++;
+      hashes[row]     = putRow(row, morphognostic);
+      next[row]       = -1;
+      matches[row]    = 0;
+      matchTimes[row] = ++clock;
+      responses[row]  = response;
+      Integer nameIndex = nameIndexes.get(responseName);
+      if (nameIndex == null)
+      {
+         nameIndex = names.size();
+         names.add(responseName);
+         nameIndexes.put(responseName, nameIndex);
+      }
+      responseNames[row] = nameIndex;
+
+      chain(row);
+      return(row);
+   }
+
+
+   // Append row to its hash chain.
+   void chain(int row)
+   {
+      int i = slot(hashes[row]);
+
+      if (tableFirst[i] == -1)
+      {
+         tableHashes[i] = hashes[row];
+         tableFirst[i]  = row;
+         tableLast[i]   = row;
+         if ((row + 1) * 2 > tableSize)
+         {
+            rehash();
+         }
+      }
+      else
+      {
+         next[tableLast[i]] = row;
+         tableLast[i]       = row;
+      }
+   }
+
+
+   // Record match of row by a metamorph DB response.
+   public void match(int row)
+   {
+      matches[row]++;
+      matchTimes[row] = ++clock;
+   }
+
+
+   // Get row match count.
+   public int getMatches(int row)
+   {
+      return(matches[row]);
+   }
+
+
+   // Evict a batch of rows by policy and compact the remainder in row order.
+   void evict()
+   {
+      int count = Math.max(1, Math.min(size, (int)((float)maxRows * EVICTION_FRACTION)));
+
+      // Find eviction key threshold: rows below it are evicted, with ties evicted oldest first.
+      long[] keys = new long[size];
+      for (int row = 0; row < size; row++)
+      {
+         keys[row] = evictionKey(row);
+      }
+      long[] sorted = Arrays.copyOf(keys, size);
+      Arrays.sort(sorted);
+      long threshold = sorted[count - 1];
+      int  ties      = 0;
+      for (int i = count - 1; i >= 0 && sorted[i] == threshold; i--)
+      {
+         ties++;
+      }
+
+      // Compact.
+      int n = 0;
+      for (int row = 0; row < size; row++)
+      {
+         if ((keys[row] < threshold) || ((keys[row] == threshold) && (ties-- > 0)))
+         {
+            evicted(row);
+            continue;
+         }
+         if (n != row)
+         {
+            moveDensities(row, n);
+            responses[n]     = responses[row];
+            responseNames[n] = responseNames[row];
+            hashes[n]        = hashes[row];
+            matches[n]       = matches[row];
+            matchTimes[n]    = matchTimes[row];
+         }
+         n++;
+      }
+      size = n;
+      rechain();
+      neighborhoodOrder = null;
+      generation++;
+   }
+
+
+   // Rebuild hash chains from row hashes.
+   void rechain()
+   {
+      Arrays.fill(tableFirst, -1);
+      for (int row = 0; row < size; row++)
+      {
+         next[row] = -1;
+         chain(row);
+      }
+   }
+
+
+   // Release densities of evicted row.
+   void evicted(int row)
+   {
+   }
+
+
+   // Eviction key of row: lowest keys are evicted first.
+   long evictionKey(int row)
+   {
+      switch (EVICTION)
+      {
+      case LFU_EVICTION:
+         return(matches[row]);
+
+      case OLDEST_EVICTION:
+         return(row);
+
+      default:
+         return(matchTimes[row]);
+      }
+   }
+
+
+   // Add metamorph, returning row.
+   public int add(Metamorph metamorph)
+   {
+      return(add(metamorph.morphognostic, metamorph.response, metamorph.responseName));
+   }
+
+
+   // Double hash table size.
+   void rehash()
+   {
+      long[] oldHashes = tableHashes;
+      int[]  oldFirst  = tableFirst;
+      int[]  oldLast   = tableLast;
+
+      tableSize  *= 2;
+      tableHashes = new long[tableSize];
+      tableFirst  = new int[tableSize];
+      tableLast   = new int[tableSize];
+      Arrays.fill(tableFirst, -1);
+      for (int i = 0; i < oldFirst.length; i++)
+      {
+         if (oldFirst[i] != -1)
+         {
+            int j = slot(oldHashes[i]);
+            tableHashes[j] = oldHashes[i];
+            tableFirst[j]  = oldFirst[i];
+            tableLast[j]   = oldLast[i];
+         }
+      }
+   }
+
+
+   // Distance from query row to store row.
+   public float distance(float[] query, int row)
+   {
+      return(MetamorphDistance.distance(query, densities, row * rowLength, offsets));
+   }
+
+
+   // Distance between store rows.
+   public float distance(int row1, int row2)
+   {
+      return(MetamorphDistance.distance(densities, row1 * rowLength, row2 * rowLength, offsets));
+   }
+
+
+   // Bounded distance from query row to store row: see MetamorphDistance.boundedDistance.
+   public float boundedDistance(float[] query, int row, double bound)
+   {
+      return(MetamorphDistance.boundedDistance(query, densities, row * rowLength, offsets,
+                                               getNeighborhoodOrder(), bound));
+   }
+
+
+   // Get neighborhood order for bounded distances: decreasing mean distance
+   // per density between sampled row pairs, so that the most discriminative
+   // neighborhoods are summed first. Recomputed as the store doubles in size.
+   public int[] getNeighborhoodOrder()
+   {
+      if ((neighborhoodOrder == null) || (size >= neighborhoodOrderSize * 2))
+      {
+         int      n             = offsets.length;
+         double[] contributions = new double[n];
+         Random   random        = new Random(size);
+         float[]  row1          = new float[rowLength];
+         float[]  row2          = new float[rowLength];
+         for (int k = 0; k < NEIGHBORHOOD_ORDER_SAMPLES && size > 1; k++)
+         {
+            getRow(random.nextInt(size), row1, 0);
+            getRow(random.nextInt(size), row2, 0);
+            for (int i = 0, j = 0; i < n; i++)
+            {
+               for ( ; j < offsets[i]; j++)
+               {
+                  contributions[i] += Math.abs(row1[j] - row2[j]);
+               }
+            }
+         }
+         Integer[] order = new Integer[n];
+         for (int i = 0; i < n; i++)
+         {
+            order[i]          = i;
+            contributions[i] /= (double)(offsets[i] - (i == 0 ? 0 : offsets[i - 1]));
+         }
+         Arrays.sort(order, new Comparator<Integer>()
+                     {
+                        public int compare(Integer i1, Integer i2)
+                        {
+                           return(Double.compare(contributions[i2], contributions[i1]));
+                        }
+                     }
+                     );
+         int[] neighborhoods = new int[n];
+         for (int i = 0; i < n; i++)
+         {
+            neighborhoods[i] = order[i];
+         }
+         neighborhoodOrder     = neighborhoods;
+         neighborhoodOrderSize = Math.max(size, 1);
+      }
+      return(neighborhoodOrder);
+   }
+
+
+   // Scan for rows at minimum distance from morphognostic, in row order.
+   // Batched distances select candidates within summation tolerance of the
+   // minimum, and candidates are resolved with the exact distance.
+   // Stores of at least PARALLEL_SCAN_THRESHOLD rows are scanned in blocks by
+   // fork/join tasks, whose results are merged in row order, so the rows
+   // returned do not depend on the scan being parallel.
+   public int[] scan(Morphognostic morphognostic)
+   {
+      if (size == 0)
+      {
+         return(new int[0]);
+      }
+      float[] query = flatten(morphognostic);
+      if (scanDistances == null || scanDistances.length < size)
+      {
+         scanDistances = new float[Math.max(capacity, size)];
+      }
+      if (BOUNDED_DISTANCE)
+      {
+         getNeighborhoodOrder();
+      }
+      prepareScan(query);
+      ScanResult result;
+      if (size >= PARALLEL_SCAN_THRESHOLD)
+      {
+         ForkJoinPool pool    = ForkJoinPool.commonPool();
+         float        minimum = pool.invoke(new DistanceTask(query, 0, size));
+         result = pool.invoke(new ResolveTask(query, minimum, 0, size));
+      }
+      else
+      {
+         result = resolve(query, distances(query, 0, size), 0, size);
+      }
+      return(Arrays.copyOf(result.rows, result.numRows));
+   }
+
+
+   // Prepare scan of query before distances.
+   void prepareScan(float[] query)
+   {
+   }
+
+
+   // Scan rows at minimum distance.
+   static class ScanResult
+   {
+      float distance;
+      int[] rows;
+      int   numRows;
+
+      ScanResult()
+      {
+         distance = Float.MAX_VALUE;
+         rows     = new int[16];
+         numRows  = 0;
+      }
+
+
+      // Add row at distance.
+      void add(int row, float d)
+      {
+         if (d < distance)
+         {
+            distance = d;
+            numRows  = 0;
+         }
+         if (d == distance)
+         {
+            if (numRows == rows.length)
+            {
+               rows = Arrays.copyOf(rows, numRows * 2);
+            }
+            rows[numRows++] = row;
+         }
+      }
+
+
+      // Merge with result of following rows.
+      ScanResult merge(ScanResult next)
+      {
+         if (next.distance < distance)
+         {
+            return(next);
+         }
+         for (int i = 0; i < next.numRows && next.distance == distance; i++)
+         {
+            add(next.rows[i], next.distance);
+         }
+         return(this);
+      }
+   }
+
+   // Parallel batched distances, returning minimum.
+   class DistanceTask extends RecursiveTask<Float>
+   {
+      private static final long serialVersionUID = 0L;
+
+      float[] query;
+      int     from;
+      int     to;
+
+      DistanceTask(float[] query, int from, int to)
+      {
+         this.query = query;
+         this.from  = from;
+         this.to    = to;
+      }
+
+
+      protected Float compute()
+      {
+         if (to - from <= PARALLEL_SCAN_BLOCK)
+         {
+            return(distances(query, from, to));
+         }
+         int          middle = (from + to) >>> 1;
+         DistanceTask left   = new DistanceTask(query, from, middle);
+         left.fork();
+         float minimum = new DistanceTask(query, middle, to).compute();
+         return(Math.min(left.join(), minimum));
+      }
+   }
+
+   // Parallel candidate resolution.
+   class ResolveTask extends RecursiveTask<ScanResult>
+   {
+      private static final long serialVersionUID = 0L;
+
+      float[] query;
+      float   minimum;
+      int     from;
+      int     to;
+
+      ResolveTask(float[] query, float minimum, int from, int to)
+      {
+         this.query   = query;
+         this.minimum = minimum;
+         this.from    = from;
+         this.to      = to;
+      }
+
+
+      protected ScanResult compute()
+      {
+         if (to - from <= PARALLEL_SCAN_BLOCK)
+         {
+            return(resolve(query, minimum, from, to));
+         }
+         int         middle = (from + to) >>> 1;
+         ResolveTask left   = new ResolveTask(query, minimum, from, middle);
+         left.fork();
+         ScanResult right = new ResolveTask(query, minimum, middle, to).compute();
+         return(left.join().merge(right));
+      }
+   }
+
+
+   // Distances of rows from .. to - 1 into scan distances, returning minimum.
+   // Bounded distances abandon rows beyond tolerance of the minimum so far;
+   // their partial distances are stored and fall outside candidate resolution.
+   float distances(float[] query, int from, int to)
+   {
+      float minimum = Float.MAX_VALUE;
+
+      if (BOUNDED_DISTANCE)
+      {
+         int[] order = getNeighborhoodOrder();
+         for (int row = from; row < to; row++)
+         {
+            float d = MetamorphDistance.boundedDistance(query, densities, row * rowLength, offsets, order,
+                                                        MetamorphDistance.widenBound(minimum, rowLength));
+            scanDistances[row] = d;
+            if (d < minimum)
+            {
+               minimum = d;
+            }
+         }
+         return(minimum);
+      }
+      MetamorphDistance.distances(query, densities, from, to - from, offsets, scanDistances, from);
+      for (int row = from; row < to; row++)
+      {
+         if (scanDistances[row] < minimum)
+         {
+            minimum = scanDistances[row];
+         }
+      }
+      return(minimum);
+   }
+
+
+   // Resolve rows from .. to - 1 within tolerance of minimum scan distance with exact distances.
+   ScanResult resolve(float[] query, float minimum, int from, int to)
+   {
+      ScanResult result    = new ScanResult();
+      double     tolerance = MetamorphDistance.tolerance(rowLength);
+
+      for (int row = from; row < to; row++)
+      {
+         double d = (double)scanDistances[row];
+         if (d - (double)minimum <= tolerance * (d + (double)minimum))
+         {
+            result.add(row, distance(query, row));
+         }
+      }
+      return(result);
+   }
+
+
+   // Rehydrate morphognostic of row.
+   public Morphognostic getMorphognostic(int row)
+   {
+      Morphognostic morphognostic = template.clone();
+      float[]       densities     = new float[rowLength];
+      int           p             = 0;
+
+      getRow(row, densities, 0);
+      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+      {
+         Morphognostic.Neighborhood.Sector[][] sectors = morphognostic.neighborhoods.get(i).sectors;
+         int   n     = sectors.length;
+         int[] order = sectorOrder[i];
+         for (int s = 0; s < order.length; s++)
+         {
+            float[][] typeDensities = sectors[order[s] / n][order[s] % n].typeDensities;
+            for (int d = 0; d < morphognostic.eventDimensions; d++)
+            {
+               float[] values = typeDensities[d];
+               for (int j = 0; j < morphognostic.numEventTypes[d]; j++)
+               {
+                  values[j] = densities[p++];
+               }
+            }
+         }
+      }
+      return(morphognostic);
+   }
+
+
+   // Rehydrate metamorph of row.
+   public Metamorph getMetamorph(int row)
+   {
+      return(new Metamorph(getMorphognostic(row), getResponse(row), getResponseName(row)));
+   }
+
+
+   // Save in row order as single metamorph groups with 32-bit hash folds,
+   // so that loading restores the row order.
+   public void save(DataOutputStream output) throws IOException
+   {
+      Utility.saveInt(output, size);
+      for (int row = 0; row < size; row++)
+      {
+         long hash = hashes[row];
+         Utility.saveInt(output, (int)(hash ^ (hash >>> 32)));
+         Utility.saveInt(output, 1);
+         getMetamorph(row).save(output);
+      }
+   }
+
+
+   // Load saved metamorph groups, adding the metamorphs if importing.
+   // Saved hash keys are 32-bit folds and are recomputed.
+   public void load(DataInputStream input, boolean importing) throws IOException
+   {
+      int n = Utility.loadInt(input);
+
+      for (int i = 0; i < n; i++)
+      {
+         Utility.loadInt(input);
+         int n2 = Utility.loadInt(input);
+         for (int j = 0; j < n2; j++)
+         {
+            Metamorph metamorph = Metamorph.load(input);
+            if (importing)
+            {
+               add(metamorph);
+            }
+         }
+      }
+   }
+
+
+   // Save row state that saved metamorphs do not carry exactly, as a block of
+   // bytes that loading skips if it does not apply: none for full precision rows.
+   public void saveRowState(DataOutputStream output) throws IOException
+   {
+      Utility.saveInt(output, 0);
+   }
+
+
+   // Load row state saved by saveRowState over the rows loaded from saved metamorphs.
+   public void loadRowState(DataInputStream input) throws IOException
+   {
+      input.skipNBytes(Utility.loadInt(input));
+   }
+}
@@ -0,0 +1,301 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Vantage point tree index of metamorph store rows by morphognostic distance.
+// Search returns the exact set of rows at minimum distance, including
+// ties, that a linear scan with Morphognostic.compare returns.
+// Rows added to the store are indexed on update or search; the tree is
+// rebuilt when store rows have been evicted.
+
+package openworm.morphognosis.wormworx;
+
+import java.util.Arrays;
+
+import morphognosis.Morphognostic;
+
+public class MetamorphVPTree
+{
+   // Maximum leaf entries before splitting.
+   public static final int LEAF_SIZE = 16;
+
+   // Node: leaf rows, or vantage row with inside (distance < radius) and outside subtrees.
+   static class Node
+   {
+      int   vantage;
+      float radius;
+      Node  inside;
+      Node  outside;
+      int[] rows;
+      int   numRows;
+
+      Node()
+      {
+         rows = new int[LEAF_SIZE + 1];
+      }
+   }
+
+   // Indexed store.
+   MetamorphStore store;
+
+   Node root;
+   int  size;
+
+   // Store generation indexed.
+   int generation;
+
+   // Relative bound on float summation error of distances, used to widen pruning.
+   double tolerance;
+
+   // Search state.
+   float[] searchQuery;
+   float   searchDistance;
+   int[]   searchRows;
+   int     numSearchRows;
+
+   // Constructor.
+   public MetamorphVPTree(MetamorphStore store)
+   {
+      this.store = store;
+      searchRows = new int[LEAF_SIZE];
+      clear();
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      root       = null;
+      size       = 0;
+      generation = store.generation();
+   }
+
+
+   // Index store rows added since last update, rebuilding if rows have been evicted.
+   public void update()
+   {
+      if (generation != store.generation())
+      {
+         clear();
+      }
+      while (size < store.size())
+      {
+         insert(size);
+      }
+   }
+
+
+   // Size.
+   public int size()
+   {
+      return(size);
+   }
+
+
+   // Get neighborhood feature end offsets.
+   public static int[] getNeighborhoodOffsets(Morphognostic morphognostic)
+   {
+      int[] offsets = new int[morphognostic.NUM_NEIGHBORHOODS];
+      int   n       = 0;
+
+      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+      {
+         Morphognostic.Neighborhood neighborhood = morphognostic.neighborhoods.get(i);
+         int s = neighborhood.sectors.length;
+         for (int d = 0; d < morphognostic.eventDimensions; d++)
+         {
+            n += s * s * morphognostic.numEventTypes[d];
+         }
+         offsets[i] = n;
+      }
+      return(offsets);
+   }
+
+
+   // Insert store row.
+   void insert(int row)
+   {
+      if (size == 0)
+      {
+         tolerance = MetamorphDistance.tolerance(store.rowLength());
+      }
+      size++;
+      if (root == null)
+      {
+         root = new Node();
+      }
+      Node node = root;
+      while (node.rows == null)
+      {
+         if (store.distance(row, node.vantage) < node.radius)
+         {
+            node = node.inside;
+         }
+         else
+         {
+            node = node.outside;
+         }
+      }
+      if (node.numRows == node.rows.length)
+      {
+         node.rows = Arrays.copyOf(node.rows, node.rows.length * 2);
+      }
+      node.rows[node.numRows++] = row;
+      if (node.numRows > LEAF_SIZE)
+      {
+         split(node);
+      }
+   }
+
+
+   // Split leaf on first row as vantage point at median distance.
+   // Leaves of equidistant rows are not split.
+   void split(Node node)
+   {
+      int vantage = node.rows[0];
+      int n       = node.numRows - 1;
+
+      float[] distances = new float[n];
+      for (int i = 0; i < n; i++)
+      {
+         distances[i] = store.distance(vantage, node.rows[i + 1]);
+      }
+      float[] sorted = distances.clone();
+      Arrays.sort(sorted);
+      float radius = sorted[n / 2];
+      if (radius == sorted[0])
+      {
+         int i = 1;
+         while (i < n && sorted[i] == sorted[0])
+         {
+            i++;
+         }
+         if (i == n)
+         {
+            return;
+         }
+         radius = sorted[i];
+      }
+      Node inside  = new Node();
+      Node outside = new Node();
+      for (int i = 0; i < n; i++)
+      {
+         Node child = distances[i] < radius ? inside : outside;
+         if (child.numRows == child.rows.length)
+         {
+            child.rows = Arrays.copyOf(child.rows, child.rows.length * 2);
+         }
+         child.rows[child.numRows++] = node.rows[i + 1];
+      }
+      node.vantage = vantage;
+      node.radius  = radius;
+      node.inside  = inside;
+      node.outside = outside;
+      node.rows    = null;
+      node.numRows = 0;
+   }
+
+
+   // Search for rows at minimum distance from morphognostic, in row order.
+   public int[] search(Morphognostic morphognostic)
+   {
+      update();
+      if (root == null)
+      {
+         return(new int[0]);
+      }
+      searchQuery    = store.flatten(morphognostic);
+      searchDistance = Float.MAX_VALUE;
+      numSearchRows  = 0;
+      search(root);
+      int[] rows = Arrays.copyOf(searchRows, numSearchRows);
+      Arrays.sort(rows);
+      return(rows);
+   }
+
+
+   // Search node.
+   // Triangle inequality bounds are widened by the summation error tolerance
+   // so that no row at the minimum float distance is pruned.
+   void search(Node node)
+   {
+      if (node.rows != null)
+      {
+         for (int i = 0; i < node.numRows; i++)
+         {
+            int row = node.rows[i];
+            if (MetamorphStore.BOUNDED_DISTANCE)
+            {
+               // Skip rows abandoned beyond the search distance.
+               double bound = MetamorphDistance.widenBound(searchDistance, store.rowLength());
+               if ((double)store.boundedDistance(searchQuery, row, bound) > bound)
+               {
+                  continue;
+               }
+            }
+            visit(row, store.distance(searchQuery, row));
+         }
+         return;
+      }
+      float d = store.distance(searchQuery, node.vantage);
+      visit(node.vantage, d);
+      if (d < node.radius)
+      {
+         if (inside(node, d))
+         {
+            search(node.inside);
+         }
+         if (outside(node, d))
+         {
+            search(node.outside);
+         }
+      }
+      else
+      {
+         if (outside(node, d))
+         {
+            search(node.outside);
+         }
+         if (inside(node, d))
+         {
+            search(node.inside);
+         }
+      }
+   }
+
+
+   // Inside subtree may hold rows within search distance?
+   boolean inside(Node node, float d)
+   {
+      double slack = tolerance * ((double)d + (double)node.radius + (double)searchDistance);
+
+      return((double)d - (double)node.radius <= (double)searchDistance + slack);
+   }
+
+
+   // Outside subtree may hold rows within search distance?
+   boolean outside(Node node, float d)
+   {
+      double slack = tolerance * ((double)d + (double)node.radius + (double)searchDistance);
+
+      return((double)d + (double)searchDistance + slack >= (double)node.radius);
+   }
+
+
+   // Visit row at distance.
+   void visit(int row, float d)
+   {
+      if (d < searchDistance)
+      {
+         numSearchRows  = 0;
+         searchDistance = d;
+      }
+      else if (d > searchDistance)
+      {
+         return;
+      }
+      if (numSearchRows == searchRows.length)
+      {
+         searchRows = Arrays.copyOf(searchRows, searchRows.length * 2);
+      }
+      searchRows[numSearchRows++] = row;
+   }
+}
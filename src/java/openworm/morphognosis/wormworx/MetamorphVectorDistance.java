@@ -0,0 +1,92 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// SIMD morphognostic distance kernel using jdk.incubator.vector.
+// Loaded only through MetamorphDistance, which falls back to scalar
+// distances when the module is absent.
+
+package openworm.morphognosis.wormworx;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+class MetamorphVectorDistance
+{
+   static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+   // Initialize: check that vectors are usable.
+   static boolean init()
+   {
+      float[] a = new float[SPECIES.length()];
+
+      return(FloatVector.fromArray(SPECIES, a, 0).reduceLanes(VectorOperators.ADD) == 0.0f);
+   }
+
+
+   // Distances from query to count consecutive rows starting at row first,
+   // written to distances starting at index start.
+   // Each neighborhood is summed in vector lanes, then added in order.
+   static void distances(float[] query, float[] rows, int first, int count,
+                         int[] offsets, float[] distances, int start)
+   {
+      int rowLength = offsets[offsets.length - 1];
+
+      for (int r = 0, offset = first * rowLength; r < count; r++, offset += rowLength)
+      {
+         float dist = 0.0f;
+         for (int i = 0, j = 0; i < offsets.length; i++)
+         {
+            int         end   = offsets[i];
+            int         bound = j + SPECIES.loopBound(end - j);
+            FloatVector sum   = FloatVector.zero(SPECIES);
+            for ( ; j < bound; j += SPECIES.length())
+            {
+               FloatVector q = FloatVector.fromArray(SPECIES, query, j);
+               FloatVector v = FloatVector.fromArray(SPECIES, rows, offset + j);
+               sum = sum.add(q.sub(v).abs());
+            }
+            float d = sum.reduceLanes(VectorOperators.ADD);
+            for ( ; j < end; j++)
+            {
+               d += Math.abs(query[j] - rows[offset + j]);
+            }
+            dist += d;
+         }
+         distances[start + r] = dist;
+      }
+   }
+
+
+   // Bounded distance from query to row at offset, summing neighborhoods in
+   // order and abandoning as soon as the partial sum exceeds bound.
+   static float boundedDistance(float[] query, float[] rows, int offset, int[] offsets,
+                                int[] order, double bound)
+   {
+      float dist = 0.0f;
+
+      for (int i : order)
+      {
+         int         j     = (i == 0 ? 0 : offsets[i - 1]);
+         int         end   = offsets[i];
+         int         limit = j + SPECIES.loopBound(end - j);
+         FloatVector sum   = FloatVector.zero(SPECIES);
+         for ( ; j < limit; j += SPECIES.length())
+         {
+            FloatVector q = FloatVector.fromArray(SPECIES, query, j);
+            FloatVector v = FloatVector.fromArray(SPECIES, rows, offset + j);
+            sum = sum.add(q.sub(v).abs());
+         }
+         float d = sum.reduceLanes(VectorOperators.ADD);
+         for ( ; j < end; j++)
+         {
+            d += Math.abs(query[j] - rows[offset + j]);
+         }
+         dist += d;
+         if ((double)dist > bound)
+         {
+            break;
+         }
+      }
+      return(dist);
+   }
+}
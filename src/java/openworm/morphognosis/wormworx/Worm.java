@@ -7,11 +7,9 @@ package openworm.morphognosis.wormworx;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.io.*;
+import java.nio.DoubleBuffer;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 import hex.genmodel.tools.WormWorxBodyPredict;
 import hex.genmodel.tools.WormWorxHeadPredict;
@@ -80,16 +78,56 @@ public class Worm
    public static double DORSAL_SMB_MUSCLE_AMPLIFIER_OVERRIDE  = -1.0;
    public static double VENTRAL_SMB_MUSCLE_AMPLIFIER_OVERRIDE = -1.0;
 
+   // Wormsim linear solver and Jacobian.
+   public static int     WORMSIM_LINEAR_SOLVER     = Wormsim.BAND_SOLVER;
+   public static boolean WORMSIM_ANALYTIC_JACOBIAN = true;
+
+   // Read wormsim state from shared buffer instead of copying through JNI.
+   public static boolean WORMSIM_SHARED_BUFFER = true;
+
+   // Morphognostic update: full recompute from event history, incremental,
+   // or summed-area table lookups.
+   public static final int FULL_MORPHOGNOSTIC_UPDATE        = 0;
+   public static final int INCREMENTAL_MORPHOGNOSTIC_UPDATE = 1;
+   public static final int SUMMED_AREA_MORPHOGNOSTIC_UPDATE = 2;
+   public static int       MORPHOGNOSTIC_UPDATE             = INCREMENTAL_MORPHOGNOSTIC_UPDATE;
+
+   // Validate morphognostic update against full recompute.
+   public static boolean VALIDATE_MORPHOGNOSTIC_UPDATE = false;
+
+   // Metamorph DB nearest morphognostic search: linear scan, index, or approximate (LSH).
+   public static final int LINEAR_METAMORPH_SEARCH      = 0;
+   public static final int INDEX_METAMORPH_SEARCH       = 1;
+   public static final int APPROXIMATE_METAMORPH_SEARCH = 2;
+   public static int       METAMORPH_SEARCH             = INDEX_METAMORPH_SEARCH;
+
+   // Persistent memory-mapped metamorph database file name prefix, or null for heap stores.
+   public static String METAMORPH_DB = null;
+
+   // Approximate search recall is sampled against the exact index every interval queries: 0=off.
+   public static int APPROXIMATE_RECALL_INTERVAL = 0;
+
    // H2O morphognostic classification.
    public WormWorxHeadPredict H2OheadPredict;
    public WormWorxBodyPredict H2ObodyPredict;
    public String[] H2OresponseLabels;
+   double[]        H2Ofeatures;
+   float[]         H2Oprobabilities;
+
+   // H2O evaluation of stored metamorphs scores them in batches of rows.
+   public static final boolean evaluateMetamorphH2ONNmodels = true;
+   public static int           H2O_BATCH_SIZE               = 256;
 
    // Found food?
    public boolean foundFood;
 
-   // Simulator synchronization.
-   public Object wormsimLock;
+   // Simulator instance handle and synchronization.
+   // The lock exists before the instance is created, so it is never null.
+   public long         wormsimHandle;
+   public final Object wormsimLock = new Object();
+
+   // Simulator state restored on reset.
+   public byte[] wormsimResetSnapshot;
 
    // Neural network dataset save file names.
    public static final String HEAD_NN_DATASET_SAVE_FILE_NAME = "headMetamorphs.csv";
@@ -118,44 +156,632 @@ public class Worm
       // Navigation.
       public boolean[][] landmarkMap;
       public int         maxEventAge;
-      public class Event
+
+      // Event history ring, newest at eventHead.
+      // One expired event is retained for the incremental update.
+      public int     eventCount;
+      public int     eventHead;
+      public int[]   eventX;
+      public int[]   eventY;
+      public int[]   eventTimes;
+      public int[][] eventValues;
+
+      // Cell/sensor stamps marking the youngest event within a neighborhood epoch.
+      int[] cellStamps;
+      int   cellStamp;
+
+      // Incremental morphognostic neighborhood.
+      public class IncrementalNeighborhood
+      {
+         public Morphognostic.Neighborhood neighborhood;
+
+         // Youngest event value and time within epoch by cell/sensor, value -1 if none.
+         public int[] cellValues;
+         public int[] cellTimes;
+
+         // Sector event type counts, or value sums for single type sensors.
+         public int[][][][] sectorCounts;
+
+         // Grid origin.
+         public int ox, oy;
+
+         public IncrementalNeighborhood(Morphognostic.Neighborhood neighborhood)
+         {
+            this.neighborhood = neighborhood;
+            cellValues        = new int[Agar.GRID_SIZE.width * Agar.GRID_SIZE.height * NUM_SENSORS];
+            cellTimes         = new int[cellValues.length];
+            int n = neighborhood.sectors.length;
+            sectorCounts = new int[n][n][NUM_SENSORS][];
+            for (int i = 0; i < n; i++)
+            {
+               for (int j = 0; j < n; j++)
+               {
+                  for (int d = 0; d < NUM_SENSORS; d++)
+                  {
+                     sectorCounts[i][j][d] = new int[neighborhood.sectors[i][j].typeDensities[d].length];
+                  }
+               }
+            }
+         }
+
+
+         // Rebuild from event history.
+         public void rebuild()
+         {
+            int w = Agar.GRID_SIZE.width;
+            int h = Agar.GRID_SIZE.height;
+            int a = eventTimes.length;
+
+            for (int i = 0; i < cellValues.length; i++)
+            {
+               cellValues[i] = -1;
+            }
+            for (int e = 0; e < eventCount; e++)
+            {
+               int k   = (eventHead - e + a) % a;
+               int age = eventTime - eventTimes[k];
+               if (age < neighborhood.epoch)
+               {
+                  continue;
+               }
+               if (age >= neighborhood.epoch + neighborhood.duration)
+               {
+                  break;
+               }
+               int cell = (eventX[k] * h + eventY[k]) * NUM_SENSORS;
+               for (int d = 0; d < NUM_SENSORS; d++)
+               {
+                  if ((eventValues[k][d] != -1) && (cellValues[cell + d] == -1))
+                  {
+                     cellValues[cell + d] = eventValues[k][d];
+                     cellTimes[cell + d]  = eventTimes[k];
+                  }
+               }
+            }
+            ox = (x + neighborhood.dx) % w;
+            if (ox < 0) { ox += w; }
+            oy = (y + neighborhood.dy) % h;
+            if (oy < 0) { oy += h; }
+            countSectors();
+         }
+
+
+         // Count sector events from cells.
+         void countSectors()
+         {
+            int n = neighborhood.sectors.length;
+
+            for (int i = 0; i < n; i++)
+            {
+               for (int j = 0; j < n; j++)
+               {
+                  Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                  for (int d = 0; d < NUM_SENSORS; d++)
+                  {
+                     int[] counts = sectorCounts[i][j][d];
+                     for (int k = 0; k < counts.length; k++)
+                     {
+                        counts[k] = 0;
+                     }
+                  }
+                  for (int sx = s.dx; sx < s.dx + s.dimension; sx++)
+                  {
+                     for (int sy = s.dy; sy < s.dy + s.dimension; sy++)
+                     {
+                        countCell(i, j, sx, sy, 1);
+                     }
+                  }
+               }
+            }
+         }
+
+
+         // Add (sign=1) or remove (sign=-1) cell at neighborhood position to sector counts.
+         void countCell(int i, int j, int rx, int ry, int sign)
+         {
+            int w    = Agar.GRID_SIZE.width;
+            int h    = Agar.GRID_SIZE.height;
+            int cell = (((ox + rx) % w) * h + ((oy + ry) % h)) * NUM_SENSORS;
+
+            for (int d = 0; d < NUM_SENSORS; d++)
+            {
+               int value = cellValues[cell + d];
+               if (value != -1)
+               {
+                  int[] counts = sectorCounts[i][j][d];
+                  if (counts.length == 1)
+                  {
+                     counts[0] += sign * value;
+                  }
+                  else
+                  {
+                     counts[value] += sign;
+                  }
+               }
+            }
+         }
+
+
+         // Set youngest event value within epoch for cell/sensor.
+         void setCell(int cx, int cy, int d, int value, int time)
+         {
+            int w    = Agar.GRID_SIZE.width;
+            int h    = Agar.GRID_SIZE.height;
+            int cell = (cx * h + cy) * NUM_SENSORS + d;
+            int old  = cellValues[cell];
+
+            cellValues[cell] = value;
+            cellTimes[cell]  = time;
+            if (old == value)
+            {
+               return;
+            }
+            int n = neighborhood.sectors.length;
+            for (int rx = (cx - ox + w) % w; rx < neighborhood.dimension; rx += w)
+            {
+               for (int ry = (cy - oy + h) % h; ry < neighborhood.dimension; ry += h)
+               {
+                  for (int i = 0; i < n; i++)
+                  {
+                     for (int j = 0; j < n; j++)
+                     {
+                        Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                        if ((rx < s.dx) || (rx >= s.dx + s.dimension) ||
+                            (ry < s.dy) || (ry >= s.dy + s.dimension))
+                        {
+                           continue;
+                        }
+                        int[] counts = sectorCounts[i][j][d];
+                        if (counts.length == 1)
+                        {
+                           if (old != -1) { counts[0] -= old; }
+                           if (value != -1) { counts[0] += value; }
+                        }
+                        else
+                        {
+                           if (old != -1) { counts[old]--; }
+                           if (value != -1) { counts[value]++; }
+                        }
+                     }
+                  }
+               }
+            }
+         }
+
+
+         // Advance one event time step.
+         // Events cross into the epoch at its first age and out of it at its last age plus one.
+         public void update()
+         {
+            int a = eventTimes.length;
+            int w = Agar.GRID_SIZE.width;
+            int h = Agar.GRID_SIZE.height;
+
+            // Expire event leaving epoch if still youngest at its cell.
+            int age = neighborhood.epoch + neighborhood.duration;
+            int k   = (eventHead - age + a) % a;
+            if ((age < eventCount) && (eventTimes[k] == eventTime - age))
+            {
+               int cell = (eventX[k] * h + eventY[k]) * NUM_SENSORS;
+               for (int d = 0; d < NUM_SENSORS; d++)
+               {
+                  if ((cellValues[cell + d] != -1) && (cellTimes[cell + d] == eventTimes[k]))
+                  {
+                     setCell(eventX[k], eventY[k], d, -1, eventTimes[k]);
+                  }
+               }
+            }
+
+            // Event entering epoch becomes youngest at its cell.
+            age = neighborhood.epoch;
+            k   = (eventHead - age + a) % a;
+            if ((age < eventCount) && (eventTimes[k] == eventTime - age))
+            {
+               for (int d = 0; d < NUM_SENSORS; d++)
+               {
+                  if (eventValues[k][d] != -1)
+                  {
+                     setCell(eventX[k], eventY[k], d, eventValues[k][d], eventTimes[k]);
+                  }
+               }
+            }
+
+            // Slide sectors to new origin.
+            int nx = (x + neighborhood.dx) % w;
+            if (nx < 0) { nx += w; }
+            int ny = (y + neighborhood.dy) % h;
+            if (ny < 0) { ny += h; }
+            int sx = nx - ox;
+            if (sx > w / 2) { sx -= w; }
+            if (sx < -(w / 2)) { sx += w; }
+            int sy = ny - oy;
+            if (sy > h / 2) { sy -= h; }
+            if (sy < -(h / 2)) { sy += h; }
+            if ((Math.abs(sx) > 1) || (Math.abs(sy) > 1))
+            {
+               ox = nx;
+               oy = ny;
+               countSectors();
+               return;
+            }
+            int n = neighborhood.sectors.length;
+            if (sx != 0)
+            {
+               for (int i = 0; i < n; i++)
+               {
+                  for (int j = 0; j < n; j++)
+                  {
+                     Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                     int leave = (sx > 0) ? s.dx : s.dx + s.dimension - 1;
+                     for (int ry = s.dy; ry < s.dy + s.dimension; ry++)
+                     {
+                        countCell(i, j, leave, ry, -1);
+                     }
+                  }
+               }
+               ox = nx;
+               for (int i = 0; i < n; i++)
+               {
+                  for (int j = 0; j < n; j++)
+                  {
+                     Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                     int enter = (sx > 0) ? s.dx + s.dimension - 1 : s.dx;
+                     for (int ry = s.dy; ry < s.dy + s.dimension; ry++)
+                     {
+                        countCell(i, j, enter, ry, 1);
+                     }
+                  }
+               }
+            }
+            if (sy != 0)
+            {
+               for (int i = 0; i < n; i++)
+               {
+                  for (int j = 0; j < n; j++)
+                  {
+                     Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                     int leave = (sy > 0) ? s.dy : s.dy + s.dimension - 1;
+                     for (int rx = s.dx; rx < s.dx + s.dimension; rx++)
+                     {
+                        countCell(i, j, rx, leave, -1);
+                     }
+                  }
+               }
+               oy = ny;
+               for (int i = 0; i < n; i++)
+               {
+                  for (int j = 0; j < n; j++)
+                  {
+                     Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                     int enter = (sy > 0) ? s.dy + s.dimension - 1 : s.dy;
+                     for (int rx = s.dx; rx < s.dx + s.dimension; rx++)
+                     {
+                        countCell(i, j, rx, enter, 1);
+                     }
+                  }
+               }
+            }
+         }
+
+
+         // Set sector densities from counts.
+         public void setDensities()
+         {
+            int n = neighborhood.sectors.length;
+
+            for (int i = 0; i < n; i++)
+            {
+               for (int j = 0; j < n; j++)
+               {
+                  Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                  for (int d = 0; d < NUM_SENSORS; d++)
+                  {
+                     int[] counts = sectorCounts[i][j][d];
+                     for (int k = 0; k < counts.length; k++)
+                     {
+                        s.typeDensities[d][k] = (float)counts[k] / (float)s.dimension;
+                     }
+                  }
+               }
+            }
+         }
+
+
+         // Set sector events from cells.
+         public void setEvents()
+         {
+            int w = Agar.GRID_SIZE.width;
+            int h = Agar.GRID_SIZE.height;
+            int n = neighborhood.sectors.length;
+
+            for (int i = 0; i < n; i++)
+            {
+               for (int j = 0; j < n; j++)
+               {
+                  Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                  for (int sx = 0; sx < s.dimension; sx++)
+                  {
+                     int column = ((ox + s.dx + sx) % w) * h;
+                     int cy     = (oy + s.dy) % h;
+                     for (int sy = 0; sy < s.dimension; sy++)
+                     {
+                        int   cell   = (column + cy) * NUM_SENSORS;
+                        int[] events = s.events[sx][sy];
+                        for (int d = 0; d < NUM_SENSORS; d++)
+                        {
+                           events[d] = cellValues[cell + d];
+                        }
+                        if (++cy == h) { cy = 0; }
+                     }
+                  }
+               }
+            }
+         }
+      }
+      public IncrementalNeighborhood[] incrementalNeighborhoods;
+      public int     incrementalTime;
+      public boolean sectorEventsStale;
+
+      // Summed-area table morphognostic neighborhood.
+      // Time is resolved by taking the youngest event within the epoch for each
+      // cell, which is not additive, so tables sum over neighborhood x and y.
+      // Sectors are only looked up at their edges, so table coordinates are
+      // compressed to the bins between sector edges.
+      public class SummedAreaNeighborhood
       {
-         public int[] values;
-         public int   x;
-         public int   y;
-         public int   time;
-         public Event(int[] values, int x, int y, int time)
+         public Morphognostic.Neighborhood neighborhood;
+
+         // Bin by neighborhood coordinate, and table index of sector edges.
+         public int[] bins;
+         public int   numBins;
+         public int[][] sectorX1, sectorX2, sectorY1, sectorY2;
+
+         // Summed-area tables by sensor of event type counts, or value sums for single type sensors.
+         public int[][] tables;
+
+         // Youngest event value within epoch by cell/sensor, valid if stamped.
+         public int[] cellValues;
+         public int[] cellStamps;
+         public int   cellStamp;
+
+         // Grid origin.
+         public int ox, oy;
+
+         public SummedAreaNeighborhood(Morphognostic.Neighborhood neighborhood)
+         {
+            int dim = neighborhood.dimension;
+            int n   = neighborhood.sectors.length;
+
+            this.neighborhood = neighborhood;
+            boolean[] edges = new boolean[dim + 1];
+            edges[0]   = true;
+            edges[dim] = true;
+            for (int i = 0; i < n; i++)
+            {
+               for (int j = 0; j < n; j++)
+               {
+                  Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                  edges[clip(s.dx, dim)] = true;
+                  edges[clip(s.dx + s.dimension, dim)] = true;
+                  edges[clip(s.dy, dim)] = true;
+                  edges[clip(s.dy + s.dimension, dim)] = true;
+               }
+            }
+            int[] edgeIndex = new int[dim + 1];
+            bins    = new int[dim];
+            numBins = 0;
+            for (int i = 0; i < dim; i++)
+            {
+               if (edges[i] && (i > 0))
+               {
+                  numBins++;
+               }
+               edgeIndex[i] = numBins;
+               bins[i]      = numBins;
+            }
+            edgeIndex[dim] = ++numBins;
+            sectorX1       = new int[n][n];
+            sectorX2       = new int[n][n];
+            sectorY1       = new int[n][n];
+            sectorY2       = new int[n][n];
+            for (int i = 0; i < n; i++)
+            {
+               for (int j = 0; j < n; j++)
+               {
+                  Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                  sectorX1[i][j] = edgeIndex[clip(s.dx, dim)];
+                  sectorX2[i][j] = edgeIndex[clip(s.dx + s.dimension, dim)];
+                  sectorY1[i][j] = edgeIndex[clip(s.dy, dim)];
+                  sectorY2[i][j] = edgeIndex[clip(s.dy + s.dimension, dim)];
+               }
+            }
+            tables = new int[NUM_SENSORS][];
+            for (int d = 0; d < NUM_SENSORS; d++)
+            {
+               tables[d] = new int[(numBins + 1) * (numBins + 1) * neighborhood.sectors[0][0].typeDensities[d].length];
+            }
+            cellValues = new int[Agar.GRID_SIZE.width * Agar.GRID_SIZE.height * NUM_SENSORS];
+            cellStamps = new int[cellValues.length];
+            cellStamp  = 0;
+         }
+
+
+         int clip(int v, int dim)
+         {
+            return(Math.max(0, Math.min(v, dim)));
+         }
+
+
+         // Update sector densities.
+         public void update()
          {
-            int n = values.length;
+            int w = Agar.GRID_SIZE.width;
+            int h = Agar.GRID_SIZE.height;
+            int a = eventTimes.length;
+            int m = numBins + 1;
 
-            this.values = new int[n];
+            for (int d = 0; d < NUM_SENSORS; d++)
+            {
+               int[] table = tables[d];
+               for (int i = 0; i < table.length; i++)
+               {
+                  table[i] = 0;
+               }
+            }
+            cellStamp++;
+            if (cellStamp == 0)
+            {
+               for (int i = 0; i < cellStamps.length; i++)
+               {
+                  cellStamps[i] = 0;
+               }
+               cellStamp = 1;
+            }
+            ox = (x + neighborhood.dx) % w;
+            if (ox < 0) { ox += w; }
+            oy = (y + neighborhood.dy) % h;
+            if (oy < 0) { oy += h; }
+
+            // Bin youngest event within epoch by cell.
+            for (int e = 0; e < eventCount; e++)
+            {
+               int k   = (eventHead - e + a) % a;
+               int age = eventTime - eventTimes[k];
+               if (age < neighborhood.epoch)
+               {
+                  continue;
+               }
+               if (age >= neighborhood.epoch + neighborhood.duration)
+               {
+                  break;
+               }
+               int cell = (eventX[k] * h + eventY[k]) * NUM_SENSORS;
+               for (int d = 0; d < NUM_SENSORS; d++)
+               {
+                  int value = eventValues[k][d];
+                  if ((value == -1) || (cellStamps[cell + d] == cellStamp))
+                  {
+                     continue;
+                  }
+                  cellStamps[cell + d] = cellStamp;
+                  cellValues[cell + d] = value;
+
+                  // A cell appears more than once in neighborhoods wider than the grid.
+                  int[] table = tables[d];
+                  int   t     = table.length / (m * m);
+                  for (int rx = (eventX[k] - ox + w) % w; rx < neighborhood.dimension; rx += w)
+                  {
+                     for (int ry = (eventY[k] - oy + h) % h; ry < neighborhood.dimension; ry += h)
+                     {
+                        int p = ((bins[rx] + 1) * m + bins[ry] + 1) * t;
+                        if (t == 1)
+                        {
+                           table[p] += value;
+                        }
+                        else
+                        {
+                           table[p + value]++;
+                        }
+                     }
+                  }
+               }
+            }
+
+            // Sum tables.
+            for (int d = 0; d < NUM_SENSORS; d++)
+            {
+               int[] table = tables[d];
+               int   t     = table.length / (m * m);
+               for (int bx = 1; bx < m; bx++)
+               {
+                  for (int by = 1; by < m; by++)
+                  {
+                     int p = (bx * m + by) * t;
+                     for (int k = 0; k < t; k++)
+                     {
+                        table[p + k] += table[p - m * t + k] + table[p - t + k] - table[p - m * t - t + k];
+                     }
+                  }
+               }
+            }
+
+            // Look up sector densities.
+            int n = neighborhood.sectors.length;
             for (int i = 0; i < n; i++)
             {
-               this.values[i] = values[i];
+               for (int j = 0; j < n; j++)
+               {
+                  Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                  int x1 = sectorX1[i][j];
+                  int x2 = sectorX2[i][j];
+                  int y1 = sectorY1[i][j];
+                  int y2 = sectorY2[i][j];
+                  for (int d = 0; d < NUM_SENSORS; d++)
+                  {
+                     int[]   table     = tables[d];
+                     float[] densities = s.typeDensities[d];
+                     int     t         = densities.length;
+                     for (int k = 0; k < t; k++)
+                     {
+                        int count = table[(x2 * m + y2) * t + k] - table[(x1 * m + y2) * t + k] -
+                                    table[(x2 * m + y1) * t + k] + table[(x1 * m + y1) * t + k];
+                        densities[k] = (float)count / (float)s.dimension;
+                     }
+                  }
+               }
             }
-            this.x    = x;
-            this.y    = y;
-            this.time = time;
          }
 
 
-         public Event clone()
+         // Set sector events from cells.
+         public void setEvents()
          {
-            int[] v = new int[values.length];
-            for (int i = 0; i < v.length; i++)
+            int w   = Agar.GRID_SIZE.width;
+            int h   = Agar.GRID_SIZE.height;
+            int n   = neighborhood.sectors.length;
+            int dim = neighborhood.dimension;
+
+            for (int i = 0; i < n; i++)
             {
-               v[i] = values[i];
+               for (int j = 0; j < n; j++)
+               {
+                  Morphognostic.Neighborhood.Sector s = neighborhood.sectors[i][j];
+                  for (int sx = 0; sx < s.dimension; sx++)
+                  {
+                     int rx = s.dx + sx;
+                     for (int sy = 0; sy < s.dimension; sy++)
+                     {
+                        int   ry     = s.dy + sy;
+                        int[] events = s.events[sx][sy];
+                        if ((rx < 0) || (rx >= dim) || (ry < 0) || (ry >= dim))
+                        {
+                           for (int d = 0; d < NUM_SENSORS; d++)
+                           {
+                              events[d] = -1;
+                           }
+                           continue;
+                        }
+                        int cell = (((ox + rx) % w) * h + ((oy + ry) % h)) * NUM_SENSORS;
+                        for (int d = 0; d < NUM_SENSORS; d++)
+                        {
+                           events[d] = (cellStamps[cell + d] == cellStamp) ? cellValues[cell + d] : -1;
+                        }
+                     }
+                  }
+               }
             }
-            return(new Event(v, x, y, time));
          }
       }
-      public ArrayList<Event> events;
+      public SummedAreaNeighborhood[] summedAreaNeighborhoods;
+
+      // Full recompute for validation.
+      public Morphognostic validationMorphognostic;
 
       // Metamorphs.
-      public HashMap < Integer, List < Metamorph >> metamorphs;
+      public MetamorphStore metamorphs;
 
       // Constructors.
-      public Segment(int number, int numSensors, HashMap < Integer, List < Metamorph >> metamorphs)
+      public Segment(int number, int numSensors, MetamorphStore metamorphs)
       {
          init(number, numSensors, metamorphs);
          int [] numEventTypes = new int[NUM_SENSORS];
@@ -166,10 +792,11 @@ public class Worm
          morphognostic = new Morphognostic(Orientation.WEST, numEventTypes);
          Morphognostic.Neighborhood n = morphognostic.neighborhoods.get(morphognostic.NUM_NEIGHBORHOODS - 1);
          maxEventAge = n.epoch + n.duration - 1;
+         initEvents();
       }
 
 
-      public Segment(int number, int numSensors, HashMap < Integer, List < Metamorph >> metamorphs,
+      public Segment(int number, int numSensors, MetamorphStore metamorphs,
                      int NUM_NEIGHBORHOODS,
                      int NEIGHBORHOOD_INITIAL_DIMENSION,
                      int NEIGHBORHOOD_DIMENSION_STRIDE,
@@ -192,10 +819,11 @@ public class Worm
                                            EPOCH_INTERVAL_MULTIPLIER);
          Morphognostic.Neighborhood n = morphognostic.neighborhoods.get(morphognostic.NUM_NEIGHBORHOODS - 1);
          maxEventAge = n.epoch + n.duration - 1;
+         initEvents();
       }
 
 
-      void init(int number, int numSensors, HashMap < Integer, List < Metamorph >> metamorphs)
+      void init(int number, int numSensors, MetamorphStore metamorphs)
       {
          this.number     = number;
          NUM_SENSORS     = numSensors;
@@ -217,7 +845,26 @@ public class Worm
                landmarkMap[i][j] = false;
             }
          }
-         events = new ArrayList<Event>();
+      }
+
+
+      // Initialize event history.
+      void initEvents()
+      {
+         int a = maxEventAge + 2;
+
+         eventCount  = 0;
+         eventHead   = a - 1;
+         eventX      = new int[a];
+         eventY      = new int[a];
+         eventTimes  = new int[a];
+         eventValues = new int[a][NUM_SENSORS];
+         cellStamps  = new int[Agar.GRID_SIZE.width * Agar.GRID_SIZE.height * NUM_SENSORS];
+         cellStamp   = 0;
+         incrementalNeighborhoods = null;
+         sectorEventsStale        = false;
+         summedAreaNeighborhoods  = null;
+         validationMorphognostic  = null;
       }
 
 
@@ -237,8 +884,10 @@ public class Worm
                landmarkMap[i][j] = false;
             }
          }
-         events.clear();
+         eventCount = 0;
          morphognostic.clear();
+         incrementalNeighborhoods = null;
+         sectorEventsStale        = false;
       }
 
 
@@ -246,42 +895,27 @@ public class Worm
       public int cycle(int[] sensors)
       {
          // Update morphognostic.
-         int[] values = new int[NUM_SENSORS];
          for (int i = 0; i < NUM_SENSORS; i++)
          {
             this.sensors[i] = sensors[i];
-            values[i]       = sensors[i];
          }
-         events.add(new Event(values, x, y, eventTime));
-         if ((eventTime - events.get(0).time) > maxEventAge)
+         addEvent(sensors, x, y, eventTime);
+         if (MORPHOGNOSTIC_UPDATE == INCREMENTAL_MORPHOGNOSTIC_UPDATE)
          {
-            events.remove(0);
+            updateMorphognosticIncrementally();
          }
-         int w = Agar.GRID_SIZE.width;
-         int h = Agar.GRID_SIZE.height;
-         int a = maxEventAge + 1;
-         int morphEvents[][][][] = new int[w][h][NUM_SENSORS][a];
-         for (int x2 = 0; x2 < w; x2++)
+         else if (MORPHOGNOSTIC_UPDATE == SUMMED_AREA_MORPHOGNOSTIC_UPDATE)
          {
-            for (int y2 = 0; y2 < h; y2++)
-            {
-               for (int n = 0; n < NUM_SENSORS; n++)
-               {
-                  for (int t = 0; t < a; t++)
-                  {
-                     morphEvents[x2][y2][n][t] = -1;
-                  }
-               }
-            }
+            updateMorphognosticSummedArea();
+         }
+         else
+         {
+            updateMorphognostic(morphognostic);
          }
-         for (Event e : events)
+         if (VALIDATE_MORPHOGNOSTIC_UPDATE)
          {
-            for (int n = 0; n < NUM_SENSORS; n++)
-            {
-               morphEvents[e.x][e.y][n][eventTime - e.time] = e.values[n];
-            }
+            validateMorphognosticUpdate();
          }
-         morphognostic.update(morphEvents, x, y);
 
          // Respond.
          if (driver == DRIVER_TYPE.METAMORPH_DB.getValue())
@@ -307,40 +941,313 @@ public class Worm
          projectResponsePosition();
 
          // Update metamorphs.
-         Metamorph       metamorph         = new Metamorph(morphognostic.clone(), response, getResponseName(response));
-         int             morphognosticHash = hashMorphognostic(metamorph.morphognostic);
-         List<Metamorph> metamorphValues   = metamorphs.get(morphognosticHash);
-         if (metamorphValues != null)
+         // The store keeps morphognostic densities; the morphognostic is not cloned.
+         boolean found = false;
+         boolean dup   = false;
+         for (int row = metamorphs.find(morphognostic); row != -1; row = metamorphs.findNext(row))
+         {
+            if (metamorphs.getResponse(row) == response)
+            {
+               found = true;
+            }
+            else
+            {
+               dup = true;
+            }
+         }
+         if (!found)
+         {
+            if (dup)
+            {
+               System.out.println("Warning: metamorph with same morphognostic and different response added");
+            }
+            metamorphs.add(morphognostic, response, getResponseName(response));
+         }
+         return(response);
+      }
+
+
+      // Add event to history, expiring events older than maximum event age.
+      void addEvent(int[] values, int x, int y, int time)
+      {
+         int a = eventTimes.length;
+
+         while (eventCount > 0 && (time - eventTimes[(eventHead - eventCount + 1 + a) % a]) > maxEventAge + 1)
+         {
+            eventCount--;
+         }
+         eventHead = (eventHead + 1) % a;
+         if (eventCount < a)
+         {
+            eventCount++;
+         }
+         eventX[eventHead]     = x;
+         eventY[eventHead]     = y;
+         eventTimes[eventHead] = time;
+         for (int n = 0; n < NUM_SENSORS; n++)
+         {
+            eventValues[eventHead][n] = values[n];
+         }
+      }
+
+
+      // Update morphognostic sector densities from event history.
+      // Equivalent to Morphognostic.update on the dense event tensor, in which
+      // each cell/sensor takes its youngest event within the neighborhood epoch.
+      void updateMorphognostic(Morphognostic morphognostic)
+      {
+         int w = Agar.GRID_SIZE.width;
+         int h = Agar.GRID_SIZE.height;
+         int a = eventTimes.length;
+
+         for (Morphognostic.Neighborhood neighborhood : morphognostic.neighborhoods)
          {
-            boolean found = false;
-            boolean dup   = false;
-            for (Metamorph m : metamorphValues)
+            Morphognostic.Neighborhood.Sector[][] sectors = neighborhood.sectors;
+            int n = sectors.length;
+            for (int i = 0; i < n; i++)
             {
-               if (m.response == metamorph.response)
+               for (int j = 0; j < n; j++)
                {
-                  found = true;
+                  Morphognostic.Neighborhood.Sector s = sectors[i][j];
+                  for (int d = 0; d < NUM_SENSORS; d++)
+                  {
+                     float[] densities = s.typeDensities[d];
+                     for (int k = 0; k < densities.length; k++)
+                     {
+                        densities[k] = 0.0f;
+                     }
+                  }
+                  for (int sx = 0; sx < s.dimension; sx++)
+                  {
+                     for (int sy = 0; sy < s.dimension; sy++)
+                     {
+                        for (int d = 0; d < NUM_SENSORS; d++)
+                        {
+                           s.events[sx][sy][d] = -1;
+                        }
+                     }
+                  }
                }
-               else
+            }
+            cellStamp++;
+            if (cellStamp == 0)
+            {
+               for (int i = 0; i < cellStamps.length; i++)
                {
-                  dup = true;
+                  cellStamps[i] = 0;
                }
+               cellStamp = 1;
             }
-            if (!found)
+            int ox = (x + neighborhood.dx) % w;
+            if (ox < 0) { ox += w; }
+            int oy = (y + neighborhood.dy) % h;
+            if (oy < 0) { oy += h; }
+            for (int e = 0; e < eventCount; e++)
             {
-               if (dup)
+               int k   = (eventHead - e + a) % a;
+               int age = eventTime - eventTimes[k];
+               if (age < neighborhood.epoch)
+               {
+                  continue;
+               }
+               if (age >= neighborhood.epoch + neighborhood.duration)
+               {
+                  break;
+               }
+               int ex   = eventX[k];
+               int ey   = eventY[k];
+               int cell = (ex * h + ey) * NUM_SENSORS;
+               for (int d = 0; d < NUM_SENSORS; d++)
                {
-                  System.out.println("Warning: metamorph with same morphognostic and different response added");
+                  int value = eventValues[k][d];
+                  if ((value == -1) || (cellStamps[cell + d] == cellStamp))
+                  {
+                     continue;
+                  }
+                  cellStamps[cell + d] = cellStamp;
+
+                  // A cell appears more than once in neighborhoods wider than the grid.
+                  int rx = (ex - ox + w) % w;
+                  for ( ; rx < neighborhood.dimension; rx += w)
+                  {
+                     int ry = (ey - oy + h) % h;
+                     for ( ; ry < neighborhood.dimension; ry += h)
+                     {
+                        for (int i = 0; i < n; i++)
+                        {
+                           for (int j = 0; j < n; j++)
+                           {
+                              Morphognostic.Neighborhood.Sector s = sectors[i][j];
+                              if ((rx < s.dx) || (rx >= s.dx + s.dimension) ||
+                                  (ry < s.dy) || (ry >= s.dy + s.dimension))
+                              {
+                                 continue;
+                              }
+                              if (s.typeDensities[d].length == 1)
+                              {
+                                 s.typeDensities[d][0] += (float)value;
+                              }
+                              else
+                              {
+                                 s.typeDensities[d][value] += 1.0f;
+                              }
+                              s.events[rx - s.dx][ry - s.dy][d] = value;
+                           }
+                        }
+                     }
+                  }
+               }
+            }
+            for (int i = 0; i < n; i++)
+            {
+               for (int j = 0; j < n; j++)
+               {
+                  Morphognostic.Neighborhood.Sector s = sectors[i][j];
+                  for (int d = 0; d < NUM_SENSORS; d++)
+                  {
+                     float[] densities = s.typeDensities[d];
+                     for (int k = 0; k < densities.length; k++)
+                     {
+                        densities[k] /= (float)s.dimension;
+                     }
+                  }
+               }
+            }
+         }
+      }
+
+
+      // Update morphognostic incrementally from events entering and leaving
+      // neighborhood epochs, and from sectors sliding with the segment.
+      // The event history is contiguous in time, so events are found by age.
+      void updateMorphognosticIncrementally()
+      {
+         if ((incrementalNeighborhoods == null) || (incrementalTime != eventTime - 1))
+         {
+            int n = morphognostic.NUM_NEIGHBORHOODS;
+            if (incrementalNeighborhoods == null)
+            {
+               incrementalNeighborhoods = new IncrementalNeighborhood[n];
+               for (int i = 0; i < n; i++)
+               {
+                  incrementalNeighborhoods[i] = new IncrementalNeighborhood(morphognostic.neighborhoods.get(i));
+               }
+            }
+            for (IncrementalNeighborhood neighborhood : incrementalNeighborhoods)
+            {
+               neighborhood.rebuild();
+            }
+         }
+         else
+         {
+            for (IncrementalNeighborhood neighborhood : incrementalNeighborhoods)
+            {
+               neighborhood.update();
+            }
+         }
+         for (IncrementalNeighborhood neighborhood : incrementalNeighborhoods)
+         {
+            neighborhood.setDensities();
+         }
+         incrementalTime   = eventTime;
+         sectorEventsStale = true;
+      }
+
+
+      // Update morphognostic with summed-area table sector lookups.
+      void updateMorphognosticSummedArea()
+      {
+         if (summedAreaNeighborhoods == null)
+         {
+            int n = morphognostic.NUM_NEIGHBORHOODS;
+            summedAreaNeighborhoods = new SummedAreaNeighborhood[n];
+            for (int i = 0; i < n; i++)
+            {
+               summedAreaNeighborhoods[i] = new SummedAreaNeighborhood(morphognostic.neighborhoods.get(i));
+            }
+         }
+         for (SummedAreaNeighborhood neighborhood : summedAreaNeighborhoods)
+         {
+            neighborhood.update();
+         }
+         sectorEventsStale = true;
+      }
+
+
+      // Set morphognostic sector events deferred by incremental or summed-area update.
+      public void setSectorEvents()
+      {
+         if (sectorEventsStale)
+         {
+            if (summedAreaNeighborhoods != null)
+            {
+               for (SummedAreaNeighborhood neighborhood : summedAreaNeighborhoods)
+               {
+                  neighborhood.setEvents();
+               }
+            }
+            else
+            {
+               for (IncrementalNeighborhood neighborhood : incrementalNeighborhoods)
+               {
+                  neighborhood.setEvents();
+               }
+            }
+            sectorEventsStale = false;
+         }
+      }
+
+
+      // Validate morphognostic update against full recompute.
+      void validateMorphognosticUpdate()
+      {
+         if (validationMorphognostic == null)
+         {
+            validationMorphognostic = morphognostic.clone();
+         }
+         updateMorphognostic(validationMorphognostic);
+         setSectorEvents();
+         for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+         {
+            Morphognostic.Neighborhood n1 = morphognostic.neighborhoods.get(i);
+            Morphognostic.Neighborhood n2 = validationMorphognostic.neighborhoods.get(i);
+            for (int x = 0; x < n1.sectors.length; x++)
+            {
+               for (int y = 0; y < n1.sectors.length; y++)
+               {
+                  Morphognostic.Neighborhood.Sector s1 = n1.sectors[x][y];
+                  Morphognostic.Neighborhood.Sector s2 = n2.sectors[x][y];
+                  for (int d = 0; d < NUM_SENSORS; d++)
+                  {
+                     for (int k = 0; k < s1.typeDensities[d].length; k++)
+                     {
+                        if (Float.floatToIntBits(s1.typeDensities[d][k]) != Float.floatToIntBits(s2.typeDensities[d][k]))
+                        {
+                           System.err.println("Morphognostic update validation failed: segment=" + number +
+                                              ", eventTime=" + eventTime + ", neighborhood=" + i +
+                                              ", sector=[" + x + "," + y + "], density=" +
+                                              s1.typeDensities[d][k] + ", expected=" + s2.typeDensities[d][k]);
+                           return;
+                        }
+                     }
+                     for (int sx = 0; sx < s1.dimension; sx++)
+                     {
+                        for (int sy = 0; sy < s1.dimension; sy++)
+                        {
+                           if (s1.events[sx][sy][d] != s2.events[sx][sy][d])
+                           {
+                              System.err.println("Morphognostic update validation failed: segment=" + number +
+                                                 ", eventTime=" + eventTime + ", neighborhood=" + i +
+                                                 ", sector=[" + x + "," + y + "], event=" +
+                                                 s1.events[sx][sy][d] + ", expected=" + s2.events[sx][sy][d]);
+                              return;
+                           }
+                        }
+                     }
+                  }
                }
-               metamorphValues.add(metamorph);
             }
          }
-         else
-         {
-            ArrayList<Metamorph> metamorphList = new ArrayList<Metamorph>();
-            metamorphList.add(metamorph);
-            metamorphs.put(morphognosticHash, metamorphList);
-         }
-         return(response);
       }
 
 
@@ -426,6 +1333,7 @@ public class Worm
          Utility.saveInt(output, rx);
          Utility.saveInt(output, ry);
          Utility.saveInt(output, maxEventAge);
+         setSectorEvents();
          morphognostic.save(output);
          output.flush();
       }
@@ -439,6 +1347,7 @@ public class Worm
          ry            = Utility.loadInt(input);
          maxEventAge   = Utility.loadInt(input);
          morphognostic = Morphognostic.load(input);
+         initEvents();
       }
    }
 
@@ -449,13 +1358,13 @@ public class Worm
       public static final int NUM_HEAD_SENSORS = 2;
 
       // Constructors.
-      public HeadSegment(int number, HashMap < Integer, List < Metamorph >> headMetamorphs)
+      public HeadSegment(int number, MetamorphStore headMetamorphs)
       {
          super(number, NUM_HEAD_SENSORS, headMetamorphs);
       }
 
 
-      public HeadSegment(int number, HashMap < Integer, List < Metamorph >> headMetamorphs,
+      public HeadSegment(int number, MetamorphStore headMetamorphs,
                          int NUM_NEIGHBORHOODS,
                          int NEIGHBORHOOD_INITIAL_DIMENSION,
                          int NEIGHBORHOOD_DIMENSION_STRIDE,
@@ -479,14 +1388,14 @@ public class Worm
       // Anterior segment current and next directions.
       public static final int NUM_BODY_SENSORS = 3;
 
-      public BodySegment(int number, HashMap < Integer, List < Metamorph >> bodyMetamorphs)
+      public BodySegment(int number, MetamorphStore bodyMetamorphs)
       {
          super(number, NUM_BODY_SENSORS, bodyMetamorphs);
       }
 
 
       // Constructors.
-      public BodySegment(int number, HashMap < Integer, List < Metamorph >> bodyMetamorphs,
+      public BodySegment(int number, MetamorphStore bodyMetamorphs,
                          int NUM_NEIGHBORHOODS,
                          int NEIGHBORHOOD_INITIAL_DIMENSION,
                          int NEIGHBORHOOD_DIMENSION_STRIDE,
@@ -511,12 +1420,20 @@ public class Worm
    public static final int NSEG = 48;
    public static final int NBAR = (NSEG + 1);
    public double[]         wormBody;
+   public DoubleBuffer     wormsimView;
    public Point2D.         Double[] wormVerts;
    public Point[] segmentSimPositions;
 
    // Metamorphs.
-   public                      HashMap < Integer, List < Metamorph >> headMetamorphs;
-   public                      HashMap < Integer, List < Metamorph >> bodyMetamorphs;
+   public MetamorphStore       headMetamorphs;
+   public MetamorphStore       bodyMetamorphs;
+   public MetamorphVPTree      headMetamorphIndex;
+   public MetamorphVPTree      bodyMetamorphIndex;
+   public MetamorphLSH         headMetamorphLSH;
+   public MetamorphLSH         bodyMetamorphLSH;
+   public int                  approximateSearches;
+   public int                  approximateRecallSamples;
+   public int                  approximateRecallHits;
    public FastVector           headMetamorphWekaNNattributeNames;
    public FastVector           bodyMetamorphWekaNNattributeNames;
    public Instances            headMetamorphWekaInstances;
@@ -527,6 +1444,19 @@ public class Worm
    public static final boolean saveMetamorphWekaNN        = false;
    public static final boolean evaluateMetamorphWekaNN    = true;
 
+   // Weka NN inference: by Weka, or by flat networks exported from the trained Weka networks.
+   public static final int WEKA_NN_INFERENCE      = 0;
+   public static final int FLAT_NN_INFERENCE      = 1;
+   public static int       METAMORPH_NN_INFERENCE = FLAT_NN_INFERENCE;
+   MetamorphMLP            headMetamorphMLP;
+   MetamorphMLP            bodyMetamorphMLP;
+
+   // Weka NN classification buffers: segment instances over reused attribute values
+   // bound to the instances header, and class value index to response tables.
+   double[][] wekaValues    = new double[NUM_SEGMENTS][];
+   Instance[] wekaInstances = new Instance[NUM_SEGMENTS];
+   int[][]    wekaResponses = new int[NUM_SEGMENTS][];
+
    // Random numbers.
    public int          randomSeed;
    public SecureRandom random;
@@ -535,9 +1465,13 @@ public class Worm
    public Worm(Agar agar, int randomSeed)
    {
       init(agar, randomSeed);
-      headMetamorphs = new HashMap < Integer, List < Metamorph >> ();
+      headMetamorphs     = createMetamorphStore(".head");
+      bodyMetamorphs     = createMetamorphStore(".body");
+      headMetamorphIndex = new MetamorphVPTree(headMetamorphs);
+      bodyMetamorphIndex = new MetamorphVPTree(bodyMetamorphs);
+      headMetamorphLSH   = new MetamorphLSH(headMetamorphs);
+      bodyMetamorphLSH   = new MetamorphLSH(bodyMetamorphs);
       headSegment    = new HeadSegment(0, headMetamorphs);
-      bodyMetamorphs = new HashMap < Integer, List < Metamorph >> ();
       bodySegments   = new BodySegment[NUM_BODY_SEGMENTS];
       for (int i = 0; i < NUM_BODY_SEGMENTS; i++)
       {
@@ -560,7 +1494,12 @@ public class Worm
                int EPOCH_INTERVAL_MULTIPLIER)
    {
       init(agar, randomSeed);
-      headMetamorphs = new HashMap < Integer, List < Metamorph >> ();
+      headMetamorphs     = createMetamorphStore(".head");
+      bodyMetamorphs     = createMetamorphStore(".body");
+      headMetamorphIndex = new MetamorphVPTree(headMetamorphs);
+      bodyMetamorphIndex = new MetamorphVPTree(bodyMetamorphs);
+      headMetamorphLSH   = new MetamorphLSH(headMetamorphs);
+      bodyMetamorphLSH   = new MetamorphLSH(bodyMetamorphs);
       headSegment    = new HeadSegment(0, headMetamorphs,
                                        NUM_NEIGHBORHOODS,
                                        NEIGHBORHOOD_INITIAL_DIMENSION,
@@ -568,7 +1507,6 @@ public class Worm
                                        NEIGHBORHOOD_DIMENSION_MULTIPLIER,
                                        EPOCH_INTERVAL_STRIDE,
                                        EPOCH_INTERVAL_MULTIPLIER);
-      bodyMetamorphs = new HashMap < Integer, List < Metamorph >> ();
       bodySegments   = new BodySegment[NUM_BODY_SEGMENTS];
       for (int i = 0; i < NUM_BODY_SEGMENTS; i++)
       {
@@ -597,7 +1535,16 @@ public class Worm
       random.setSeed(randomSeed);
       eventTime = 0;
       driver    = DRIVER_TYPE.WORMSIM.getValue();
-      Wormsim.init();
+      synchronized (wormsimLock)
+      {
+         wormsimHandle = Wormsim.create();
+         if (WORMSIM_SHARED_BUFFER)
+         {
+            wormsimView = Wormsim.createSharedBuffer(wormsimHandle);
+         }
+         Wormsim.init(wormsimHandle, WORMSIM_LINEAR_SOLVER, WORMSIM_ANALYTIC_JACOBIAN);
+         wormsimResetSnapshot = Wormsim.snapshot(wormsimHandle);
+      }
       wormBody            = new double[NBAR * 3];
       wormVerts           = new Point2D.Double[NBAR];
       segmentSimPositions = new Point[NUM_SEGMENTS];
@@ -605,7 +1552,6 @@ public class Worm
       H2OheadPredict = new WormWorxHeadPredict();
       H2ObodyPredict = new WormWorxBodyPredict();
       foundFood      = false;
-      wormsimLock    = new Object();
       boolean result = true;
       H2OresponseLabels = H2OheadPredict.initPredict("wormworx_head_model");
       if (H2OresponseLabels == null)
@@ -625,20 +1571,66 @@ public class Worm
    {
       synchronized (wormsimLock)
       {
-         Wormsim.terminate();
+         if (wormsimHandle != 0)
+         {
+            Wormsim.terminate(wormsimHandle);
+            Wormsim.destroy(wormsimHandle);
+            wormsimHandle = 0;
+         }
+      }
+      try
+      {
+         headMetamorphs.close();
+         bodyMetamorphs.close();
+      }
+      catch (IOException e)
+      {
+         System.err.println("Cannot close metamorph database: " + e.getMessage());
+      }
+   }
+
+
+   // Create metamorph store: memory-mapped database if configured, else heap,
+   // quantized or with shared neighborhoods if configured.
+   MetamorphStore createMetamorphStore(String suffix)
+   {
+      if (METAMORPH_DB != null)
+      {
+         try
+         {
+            return(new MetamorphMappedStore(METAMORPH_DB + suffix));
+         }
+         catch (IOException e)
+         {
+            System.err.println("Cannot open metamorph database " + METAMORPH_DB + suffix + ": " + e.getMessage());
+         }
+      }
+      if (MetamorphStore.QUANTIZATION != MetamorphStore.NO_QUANTIZATION)
+      {
+         return(new MetamorphQuantizedStore(MetamorphStore.QUANTIZATION));
       }
+      if (MetamorphStore.SHARE_NEIGHBORHOODS)
+      {
+         return(new MetamorphSharedStore());
+      }
+      return(new MetamorphStore());
    }
 
 
    // Reset.
+   // The simulator reset state excludes its parameters, so the current steering
+   // synapse weights and SMB muscle amplifier overrides are kept.
    public void reset()
    {
       random.setSeed(randomSeed);
       eventTime = 0;
       synchronized (wormsimLock)
       {
-         Wormsim.terminate();
-         Wormsim.init();
+         if ((wormsimResetSnapshot == null) || !Wormsim.restore(wormsimHandle, wormsimResetSnapshot))
+         {
+            Wormsim.terminate(wormsimHandle);
+            Wormsim.init(wormsimHandle, WORMSIM_LINEAR_SOLVER, WORMSIM_ANALYTIC_JACOBIAN);
+         }
       }
       headSegment.reset();
       for (BodySegment segment : bodySegments)
@@ -650,6 +1642,16 @@ public class Worm
    }
 
 
+   // Use current simulator state, such as a warmed-up gait, for resets.
+   public void setWormsimResetState()
+   {
+      synchronized (wormsimLock)
+      {
+         wormsimResetSnapshot = Wormsim.snapshot(wormsimHandle);
+      }
+   }
+
+
    // Place worm on agar.
    public void placeWormOnAgar()
    {
@@ -672,12 +1674,36 @@ public class Worm
    // Get segment positions from simulation.
    public void getSegmentSimPositions()
    {
-      Wormsim.getBody(wormBody);
+      if (wormsimView == null)
+      {
+         Wormsim.getBody(wormsimHandle, wormBody);
+      }
+      setSegmentSimPositions();
+   }
+
+
+   // Get simulation body point.
+   public double getBodyPoint(int index)
+   {
+      if (wormsimView != null)
+      {
+         return(wormsimView.get(Wormsim.SHARED_BODY + index));
+      }
+      else
+      {
+         return(wormBody[index]);
+      }
+   }
+
+
+   // Set segment positions from simulation body.
+   public void setSegmentSimPositions()
+   {
       float s = (float)Agar.SIZE.width * Agar.SCALE / 0.001f;
       for (int i = 0; i < NBAR; i++)
       {
-         double x = ((wormBody[i * 3]) * s) + agar.x_off;
-         double y = ((wormBody[i * 3 + 1]) * s) + agar.y_off;
+         double x = (getBodyPoint(i * 3) * s) + agar.x_off;
+         double y = (getBodyPoint(i * 3 + 1) * s) + agar.y_off;
          wormVerts[i] = new Point2D.Double(x, y);
       }
       double w = (double)Agar.SIZE.width / (double)Agar.GRID_SIZE.width;
@@ -738,30 +1764,19 @@ public class Worm
          segment.save(output);
       }
       Utility.saveInt(output, eventTime);
-      Utility.saveInt(output, headMetamorphs.size());
-      for (Map.Entry < Integer, List < Metamorph >> entry : headMetamorphs.entrySet())
-      {
-         int morphognosticHash = entry.getKey();
-         Utility.saveInt(output, morphognosticHash);
-         List<Metamorph> metamorphList = entry.getValue();
-         Utility.saveInt(output, metamorphList.size());
-         for (Metamorph m : metamorphList)
-         {
-            m.save(output);
-         }
-      }
-      Utility.saveInt(output, bodyMetamorphs.size());
-      for (Map.Entry < Integer, List < Metamorph >> entry : bodyMetamorphs.entrySet())
+      headMetamorphs.save(output);
+      bodyMetamorphs.save(output);
+      byte[] snapshot;
+      synchronized (wormsimLock)
       {
-         int morphognosticHash = entry.getKey();
-         Utility.saveInt(output, morphognosticHash);
-         List<Metamorph> metamorphList = entry.getValue();
-         Utility.saveInt(output, metamorphList.size());
-         for (Metamorph m : metamorphList)
-         {
-            m.save(output);
-         }
+         snapshot = Wormsim.snapshot(wormsimHandle);
       }
+      Utility.saveInt(output, snapshot.length);
+      output.write(snapshot);
+
+      // Metamorph row state not carried by the saved metamorphs.
+      headMetamorphs.saveRowState(output);
+      bodyMetamorphs.saveRowState(output);
    }
 
 
@@ -784,6 +1799,7 @@ public class Worm
 
 
    // Load worm.
+   // Saved hash keys are 32-bit folds and are recomputed by the metamorph stores.
    public void load(DataInputStream input) throws IOException
    {
       headSegment.load(input);
@@ -792,31 +1808,58 @@ public class Worm
          segment.load(input);
       }
       eventTime = Utility.loadInt(input);
-      headMetamorphs.clear();
-      int n = Utility.loadInt(input);
-      for (int i = 0; i < n; i++)
+
+      // Persistent metamorph databases keep their rows: saved metamorphs are
+      // imported only into an empty database.
+      boolean importing;
+      if (!headMetamorphs.isPersistent())
       {
-         int morphognosticHash = Utility.loadInt(input);
-         int n2 = Utility.loadInt(input);
-         ArrayList<Metamorph> metamorphList = new ArrayList<Metamorph>();
-         for (int j = 0; j < n2; j++)
-         {
-            metamorphList.add(Metamorph.load(input));
-         }
-         headMetamorphs.put(morphognosticHash, metamorphList);
+         headMetamorphs.clear();
+      }
+      headMetamorphIndex.clear();
+      headMetamorphLSH.clear();
+      importing = (headMetamorphs.size() == 0);
+      headMetamorphs.load(input, importing);
+      if (!bodyMetamorphs.isPersistent())
+      {
+         bodyMetamorphs.clear();
+      }
+      bodyMetamorphIndex.clear();
+      bodyMetamorphLSH.clear();
+      importing = (bodyMetamorphs.size() == 0);
+      bodyMetamorphs.load(input, importing);
+
+      // Simulator state is absent from older files.
+      int n;
+      try
+      {
+         n = Utility.loadInt(input);
+      }
+      catch (EOFException e) {
+         n = -1;
       }
-      bodyMetamorphs.clear();
-      n = Utility.loadInt(input);
-      for (int i = 0; i < n; i++)
+      if (n >= 0)
       {
-         int morphognosticHash = Utility.loadInt(input);
-         int n2 = Utility.loadInt(input);
-         ArrayList<Metamorph> metamorphList = new ArrayList<Metamorph>();
-         for (int j = 0; j < n2; j++)
+         byte[] snapshot = new byte[n];
+         input.readFully(snapshot);
+         synchronized (wormsimLock)
+         {
+            if (!Wormsim.restore(wormsimHandle, snapshot))
+            {
+               System.err.println("Warning: cannot restore wormsim state");
+            }
+         }
+         getSegmentSimPositions();
+
+         // Metamorph row state is absent from older files.
+         try
          {
-            metamorphList.add(Metamorph.load(input));
+            headMetamorphs.loadRowState(input);
+            bodyMetamorphs.loadRowState(input);
+         }
+         catch (EOFException e) {
+            // Rows loaded from the saved metamorphs stand.
          }
-         bodyMetamorphs.put(morphognosticHash, metamorphList);
       }
       Morphognostic morphognostic = headSegment.morphognostic;
       initHeadMetamorphWekaNN(morphognostic);
@@ -868,12 +1911,19 @@ public class Worm
          {
             ventral = VENTRAL_SMB_MUSCLE_AMPLIFIER_OVERRIDE;
          }
-         Wormsim.overrideSMBmuscleAmplifiers(dorsal, ventral);
          synchronized (wormsimLock)
          {
-            Wormsim.step(0.0);
+            Wormsim.overrideSMBmuscleAmplifiers(wormsimHandle, dorsal, ventral);
+            if (wormsimView != null)
+            {
+               Wormsim.stepN(wormsimHandle, 1, 0.0, null);
+            }
+            else
+            {
+               Wormsim.stepN(wormsimHandle, 1, 0.0, wormBody);
+            }
          }
-         getSegmentSimPositions();
+         setSegmentSimPositions();
       }
 
       // Cycle segments.
@@ -1058,46 +2108,51 @@ public class Worm
    // Get metamorph DB response.
    int metamorphDBresponse(Morphognostic morphognostic, int segmentNumber)
    {
-      HashMap < Integer, List < Metamorph >> metamorphs;
+      MetamorphStore  metamorphs;
+      MetamorphVPTree metamorphIndex;
+      MetamorphLSH    metamorphLSH;
       if (segmentNumber == 0)
       {
-         metamorphs = headMetamorphs;
+         metamorphs     = headMetamorphs;
+         metamorphIndex = headMetamorphIndex;
+         metamorphLSH   = headMetamorphLSH;
       }
       else
       {
-         metamorphs = bodyMetamorphs;
+         metamorphs     = bodyMetamorphs;
+         metamorphIndex = bodyMetamorphIndex;
+         metamorphLSH   = bodyMetamorphLSH;
       }
-      ArrayList<Integer> responses         = new ArrayList<Integer>();
-      int                morphognosticHash = hashMorphognostic(morphognostic);
-      List<Metamorph>    metamorphValues   = metamorphs.get(morphognosticHash);
-      if (metamorphValues != null)
+      ArrayList<Integer> responses = new ArrayList<Integer>();
+      for (int row = metamorphs.find(morphognostic); row != -1; row = metamorphs.findNext(row))
       {
-         for (Metamorph m : metamorphValues)
-         {
-            responses.add(m.response);
-         }
+         metamorphs.match(row);
+         responses.add(metamorphs.getResponse(row));
       }
-      else
+      if ((responses.size() == 0) && (metamorphs.size() > 0))
       {
-         float dist = -1.0f;
-         for (List<Metamorph> metamorphList : metamorphs.values())
+         if (METAMORPH_SEARCH == APPROXIMATE_METAMORPH_SEARCH)
          {
-            for (Metamorph m : metamorphList)
+            for (int row : approximateSearch(morphognostic, metamorphs, metamorphIndex, metamorphLSH))
             {
-               float d = morphognostic.compare(m.morphognostic);
-               if ((dist < 0.0f) || (d < dist))
-               {
-                  responses.clear();
-                  responses.add(m.response);
-                  dist = d;
-               }
-               else
-               {
-                  if (d == dist)
-                  {
-                     responses.add(m.response);
-                  }
-               }
+               metamorphs.match(row);
+               responses.add(metamorphs.getResponse(row));
+            }
+         }
+         else if (METAMORPH_SEARCH == INDEX_METAMORPH_SEARCH)
+         {
+            for (int row : metamorphIndex.search(morphognostic))
+            {
+               metamorphs.match(row);
+               responses.add(metamorphs.getResponse(row));
+            }
+         }
+         else
+         {
+            for (int row : metamorphs.scan(morphognostic))
+            {
+               metamorphs.match(row);
+               responses.add(metamorphs.getResponse(row));
             }
          }
       }
@@ -1110,29 +2165,50 @@ public class Worm
    }
 
 
-   // Hash morphognostic.
-   public int hashMorphognostic(Morphognostic morphognostic)
+   // Approximate nearest metamorph search.
+   // Falls back to the exact index when no candidates are found. Recall is sampled
+   // on every interval query: a hit is an approximate nearest distance equal to the
+   // exact one, and a sampled query without candidates is a miss.
+   int[] approximateSearch(Morphognostic morphognostic, MetamorphStore metamorphs,
+                           MetamorphVPTree metamorphIndex, MetamorphLSH metamorphLSH)
    {
-      ArrayList<Float> densities = new ArrayList<Float>();
-      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+      int[] rows = metamorphLSH.search(morphognostic);
+
+      approximateSearches++;
+      boolean sample = (APPROXIMATE_RECALL_INTERVAL > 0) &&
+                       ((approximateSearches % APPROXIMATE_RECALL_INTERVAL) == 0);
+      if ((rows.length == 0) || sample)
       {
-         int n = morphognostic.neighborhoods.get(i).sectors.length;
-         for (int x = 0; x < n; x++)
+         int[] exactRows = metamorphIndex.search(morphognostic);
+         if (sample && (exactRows.length > 0))
          {
-            for (int y = 0; y < n; y++)
+            approximateRecallSamples++;
+            if (rows.length > 0)
             {
-               Morphognostic.Neighborhood.Sector s = morphognostic.neighborhoods.get(i).sectors[x][y];
-               for (int d = 0; d < morphognostic.eventDimensions; d++)
+               float[] query = metamorphs.flatten(morphognostic);
+               if (metamorphs.distance(query, rows[0]) == metamorphs.distance(query, exactRows[0]))
                {
-                  for (int j = 0; j < s.typeDensities[d].length; j++)
-                  {
-                     densities.add(s.typeDensities[d][j]);
-                  }
+                  approximateRecallHits++;
                }
             }
          }
+         if (rows.length == 0)
+         {
+            rows = exactRows;
+         }
+      }
+      return(rows);
+   }
+
+
+   // Get approximate search recall sampled against the exact search, or -1 if unsampled.
+   public float getApproximateRecall()
+   {
+      if (approximateRecallSamples == 0)
+      {
+         return(-1.0f);
       }
-      return(densities.hashCode());
+      return((float)approximateRecallHits / (float)approximateRecallSamples);
    }
 
 
@@ -1145,7 +2221,7 @@ public class Worm
       }
       else
       {
-         return(classifyBodyMorphognostic(morphognostic));
+         return(classifyBodyMorphognostic(morphognostic, segmentNumber));
       }
    }
 
@@ -1156,14 +2232,19 @@ public class Worm
       int response = STAY;
 
       try {
-         float[] p;
+         H2Ofeatures = morphognostic2features(morphognostic, H2Ofeatures);
+         if ((H2Oprobabilities == null) || (H2Oprobabilities.length != H2OresponseLabels.length))
+         {
+            H2Oprobabilities = new float[H2OresponseLabels.length];
+         }
+         float[] p = H2Oprobabilities;
          if (segmentNumber == 0)
          {
-            p = H2OheadPredict.predict(morphognostic2csv(morphognostic) + ",STAY");
+            H2OheadPredict.predict(H2Ofeatures, p);
          }
          else
          {
-            p = H2ObodyPredict.predict(morphognostic2csv(morphognostic) + ",STAY");
+            H2ObodyPredict.predict(H2Ofeatures, p);
          }
          float probability = -1.0f;
          for (int i = 0; i < H2OresponseLabels.length; i++)
@@ -1189,6 +2270,64 @@ public class Worm
    }
 
 
+   // Evaluate H2O neural network on stored head or body metamorphs,
+   // returning the fraction whose response is the most probable.
+   public float evaluateMetamorphH2ONN(boolean head) throws Exception
+   {
+      MetamorphStore metamorphs = (head ? headMetamorphs : bodyMetamorphs);
+      int            n          = metamorphs.size();
+
+      if (n == 0)
+      {
+         return(0.0f);
+      }
+      int      numFeatures   = morphognostic2features(metamorphs.getMorphognostic(0), null).length;
+      int      numOutputs    = (head ? H2OheadPredict.numOutputs() : H2ObodyPredict.numOutputs());
+      if (numOutputs != H2OresponseLabels.length)
+      {
+         throw new Exception("H2O " + (head ? "head" : "body") + " model has " + numOutputs +
+                             " response classes, expected " + H2OresponseLabels.length + " response labels");
+      }
+      double[] features      = new double[H2O_BATCH_SIZE * numFeatures];
+      float[]  probabilities = new float[H2O_BATCH_SIZE * numOutputs];
+      double[] row           = new double[numFeatures];
+      int      correct       = 0;
+      for (int from = 0; from < n; from += H2O_BATCH_SIZE)
+      {
+         int count = Math.min(H2O_BATCH_SIZE, n - from);
+         for (int i = 0; i < count; i++)
+         {
+            row = morphognostic2features(metamorphs.getMorphognostic(from + i), row);
+            System.arraycopy(row, 0, features, i * numFeatures, numFeatures);
+         }
+         if (head)
+         {
+            H2OheadPredict.predict(features, numFeatures, count, probabilities);
+         }
+         else
+         {
+            H2ObodyPredict.predict(features, numFeatures, count, probabilities);
+         }
+         for (int i = 0; i < count; i++)
+         {
+            int best = 0;
+            for (int j = 1; j < numOutputs; j++)
+            {
+               if (probabilities[i * numOutputs + j] > probabilities[i * numOutputs + best])
+               {
+                  best = j;
+               }
+            }
+            if (getResponseValue(H2OresponseLabels[best]) == metamorphs.getResponse(from + i))
+            {
+               correct++;
+            }
+         }
+      }
+      return((float)correct / (float)n);
+   }
+
+
    // Wormsim response.
    int wormsimResponse(Segment segment)
    {
@@ -1359,12 +2498,9 @@ public class Worm
    {
       // Create instances.
       headMetamorphWekaInstances = new Instances("head_metamorphs", headMetamorphWekaNNattributeNames, 0);
-      for (List<Metamorph> metamorphList : headMetamorphs.values())
+      for (int i = 0, n = headMetamorphs.size(); i < n; i++)
       {
-         for (Metamorph m : metamorphList)
-         {
-            headMetamorphWekaInstances.add(createInstance(headMetamorphWekaInstances, m));
-         }
+         headMetamorphWekaInstances.add(createInstance(headMetamorphWekaInstances, headMetamorphs.getMetamorph(i)));
       }
       headMetamorphWekaInstances.setClassIndex(headMetamorphWekaInstances.numAttributes() - 1);
 
@@ -1377,6 +2513,7 @@ public class Worm
       mlp.setHiddenLayers("20");
       mlp.setOptions(Utils.splitOptions("-L 0.1 -M 0.2 -N 2000 -V 0 -S 0 -E 20 -H 20"));
       mlp.buildClassifier(headMetamorphWekaInstances);
+      headMetamorphMLP = MetamorphMLP.export(mlp);
 
       // Save training instances?
       if (saveMetamorphWekaInstances)
@@ -1400,6 +2537,10 @@ public class Worm
          eval.evaluateModel(mlp, headMetamorphWekaInstances);
          System.out.println("Error rate=" + eval.errorRate());
          System.out.println(eval.toSummaryString());
+         if (headMetamorphMLP != null)
+         {
+            System.out.println("Flat NN agreement=" + getMetamorphMLPagreement(mlp, headMetamorphMLP, headMetamorphWekaInstances));
+         }
       }
    }
 
@@ -1409,12 +2550,9 @@ public class Worm
    {
       // Create instances.
       bodyMetamorphWekaInstances = new Instances("body_metamorphs", bodyMetamorphWekaNNattributeNames, 0);
-      for (List<Metamorph> metamorphList : bodyMetamorphs.values())
+      for (int i = 0, n = bodyMetamorphs.size(); i < n; i++)
       {
-         for (Metamorph m : metamorphList)
-         {
-            bodyMetamorphWekaInstances.add(createInstance(bodyMetamorphWekaInstances, m));
-         }
+         bodyMetamorphWekaInstances.add(createInstance(bodyMetamorphWekaInstances, bodyMetamorphs.getMetamorph(i)));
       }
       bodyMetamorphWekaInstances.setClassIndex(bodyMetamorphWekaInstances.numAttributes() - 1);
 
@@ -1427,6 +2565,7 @@ public class Worm
       mlp.setHiddenLayers("20");
       mlp.setOptions(Utils.splitOptions("-L 0.1 -M 0.2 -N 2000 -V 0 -S 0 -E 20 -H 20"));
       mlp.buildClassifier(bodyMetamorphWekaInstances);
+      bodyMetamorphMLP = MetamorphMLP.export(mlp);
 
       // Save training instances?
       if (saveMetamorphWekaInstances)
@@ -1450,6 +2589,10 @@ public class Worm
          eval.evaluateModel(mlp, bodyMetamorphWekaInstances);
          System.out.println("Error rate=" + eval.errorRate());
          System.out.println(eval.toSummaryString());
+         if (bodyMetamorphMLP != null)
+         {
+            System.out.println("Flat NN agreement=" + getMetamorphMLPagreement(mlp, bodyMetamorphMLP, bodyMetamorphWekaInstances));
+         }
       }
    }
 
@@ -1499,33 +2642,31 @@ public class Worm
       }
       PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output)));
       boolean     header = true;
-      for (List<Metamorph> metamorphList : headMetamorphs.values())
+      for (int row = 0, n = headMetamorphs.size(); row < n; row++)
       {
-         for (Metamorph m : metamorphList)
+         Metamorph m   = headMetamorphs.getMetamorph(row);
+         String    csv = morphognostic2csv(m.morphognostic);
+         if (m.responseName.isEmpty())
          {
-            String csv = morphognostic2csv(m.morphognostic);
-            if (m.responseName.isEmpty())
-            {
-               csv += ("," + m.response);
-            }
-            else
-            {
-               csv += ("," + m.responseName);
-            }
-            if (header)
+            csv += ("," + m.response);
+         }
+         else
+         {
+            csv += ("," + m.responseName);
+         }
+         if (header)
+         {
+            header = false;
+            int    j    = csv.split(",").length - 1;
+            String csv2 = "";
+            for (int i = 0; i < j; i++)
             {
-               header = false;
-               int    j    = csv.split(",").length - 1;
-               String csv2 = "";
-               for (int i = 0; i < j; i++)
-               {
-                  csv2 += ("c" + i + ",");
-               }
-               csv2 += "response";
-               writer.println(csv2);
+               csv2 += ("c" + i + ",");
             }
-            writer.println(csv);
+            csv2 += "response";
+            writer.println(csv2);
          }
+         writer.println(csv);
       }
       writer.flush();
       output.close();
@@ -1547,33 +2688,31 @@ public class Worm
       }
       PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output)));
       boolean     header = true;
-      for (List<Metamorph> metamorphList : bodyMetamorphs.values())
+      for (int row = 0, n = bodyMetamorphs.size(); row < n; row++)
       {
-         for (Metamorph m : metamorphList)
+         Metamorph m   = bodyMetamorphs.getMetamorph(row);
+         String    csv = morphognostic2csv(m.morphognostic);
+         if (m.responseName.isEmpty())
          {
-            String csv = morphognostic2csv(m.morphognostic);
-            if (m.responseName.isEmpty())
-            {
-               csv += ("," + m.response);
-            }
-            else
-            {
-               csv += ("," + m.responseName);
-            }
-            if (header)
+            csv += ("," + m.response);
+         }
+         else
+         {
+            csv += ("," + m.responseName);
+         }
+         if (header)
+         {
+            header = false;
+            int    j    = csv.split(",").length - 1;
+            String csv2 = "";
+            for (int i = 0; i < j; i++)
             {
-               header = false;
-               int    j    = csv.split(",").length - 1;
-               String csv2 = "";
-               for (int i = 0; i < j; i++)
-               {
-                  csv2 += ("c" + i + ",");
-               }
-               csv2 += "response";
-               writer.println(csv2);
+               csv2 += ("c" + i + ",");
             }
-            writer.println(csv);
+            csv2 += "response";
+            writer.println(csv2);
          }
+         writer.println(csv);
       }
       writer.flush();
       output.close();
@@ -1616,69 +2755,153 @@ public class Worm
    }
 
 
-   // Use head metamorph Weka NN to classify morphognostic as a response.
-   public int classifyHeadMorphognostic(Morphognostic morphognostic)
+   // Flatten morphognostic to features in csv order, reusing buffer only if it has
+   // exactly the feature count, as callers take the feature count from its length.
+   public static double[] morphognostic2features(Morphognostic morphognostic, double[] features)
    {
-      Metamorph metamorph = new Metamorph(morphognostic, STAY, getResponseName(STAY));
+      int length = 0;
 
-      //float[] responseProbabilities = new float[NUM_RESPONSES];
-      int response = STAY;
+      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+      {
+         int n = morphognostic.neighborhoods.get(i).sectors.length;
+         for (int d = 0; d < morphognostic.eventDimensions; d++)
+         {
+            length += n * n * morphognostic.numEventTypes[d];
+         }
+      }
+      if ((features == null) || (features.length != length))
+      {
+         features = new double[length];
+      }
+      flattenFeatures(morphognostic, features);
+      return(features);
+   }
 
-      try
+
+   // Flatten morphognostic densities in csv order into start of values.
+   static void flattenFeatures(Morphognostic morphognostic, double[] values)
+   {
+      int p = 0;
+
+      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
       {
-         // Classify.
-         Instance instance        = createInstance(headMetamorphWekaInstances, metamorph);
-         int      predictionIndex = (int)headMetamorphWekaNN.classifyInstance(instance);
+         Morphognostic.Neighborhood.Sector[][] sectors = morphognostic.neighborhoods.get(i).sectors;
+         int n = sectors.length;
+         for (int x = 0; x < n; x++)
+         {
+            for (int y = 0; y < n; y++)
+            {
+               float[][] typeDensities = sectors[x][y].typeDensities;
+               for (int d = 0; d < morphognostic.eventDimensions; d++)
+               {
+                  float[] densities = typeDensities[d];
+                  for (int j = 0; j < densities.length; j++)
+                  {
+                     values[p++] = densities[j];
+                  }
+               }
+            }
+         }
+      }
+   }
 
-         // Get the predicted class label from the predictionIndex.
-         String predictedClassLabel = headMetamorphWekaInstances.classAttribute().value(predictionIndex);
-         response = Integer.parseInt(predictedClassLabel);
 
-         // Get the prediction probability distribution.
-         //double[] d = headMetamorphWekaNN.distributionForInstance(instance);
-         //for (int i = 0; i < NUM_RESPONSES; i++)
-         //{
-         //responseProbabilities[i] = (float)d[i];
-         //}
+   // Use head metamorph Weka NN to classify morphognostic as a response.
+   public int classifyHeadMorphognostic(Morphognostic morphognostic)
+   {
+      try
+      {
+         return(classifyMorphognostic(morphognostic, 0, headMetamorphWekaNN, headMetamorphMLP, headMetamorphWekaInstances));
       }
       catch (Exception e)
       {
          System.err.println("Error classifying head morphognostic: " + e.getMessage());
       }
-      return(response);
+      return(STAY);
    }
 
 
    // Use body metamorph Weka NN to classify morphognostic as a response.
    public int classifyBodyMorphognostic(Morphognostic morphognostic)
    {
-      Metamorph metamorph = new Metamorph(morphognostic, STAY, getResponseName(STAY));
+      return(classifyBodyMorphognostic(morphognostic, 1));
+   }
 
-      //float[] responseProbabilities = new float[NUM_RESPONSES];
-      int response = STAY;
 
+   // Use body metamorph Weka NN to classify body segment morphognostic as a response.
+   public int classifyBodyMorphognostic(Morphognostic morphognostic, int segmentNumber)
+   {
       try
       {
-         // Classify.
-         Instance instance        = createInstance(bodyMetamorphWekaInstances, metamorph);
-         int      predictionIndex = (int)bodyMetamorphWekaNN.classifyInstance(instance);
-
-         // Get the predicted class label from the predictionIndex.
-         String predictedClassLabel = bodyMetamorphWekaInstances.classAttribute().value(predictionIndex);
-         response = Integer.parseInt(predictedClassLabel);
-
-         // Get the prediction probability distribution.
-         //double[] d = bodyMetamorphWekaNN.distributionForInstance(instance);
-         //for (int i = 0; i < NUM_RESPONSES; i++)
-         //{
-         //responseProbabilities[i] = (float)d[i];
-         //}
+         return(classifyMorphognostic(morphognostic, segmentNumber, bodyMetamorphWekaNN, bodyMetamorphMLP, bodyMetamorphWekaInstances));
       }
       catch (Exception e)
       {
          System.err.println("Error classifying body morphognostic: " + e.getMessage());
       }
-      return(response);
+      return(STAY);
+   }
+
+
+   // Classify morphognostic as a response with Weka NN trained on instances,
+   // or with its exported flat network if selected.
+   // The segment instance buffer is bound once to the instances header and
+   // refilled in place, and the predicted class index is mapped to a response
+   // with a table, so classification creates no metamorph, instance or label.
+   int classifyMorphognostic(Morphognostic morphognostic, int segmentNumber,
+                             MultilayerPerceptron nn, MetamorphMLP mlp, Instances instances) throws Exception
+   {
+      if (wekaInstances[segmentNumber] == null)
+      {
+         wekaValues[segmentNumber]    = new double[instances.numAttributes()];
+         wekaInstances[segmentNumber] = new Instance(1.0, wekaValues[segmentNumber]);
+      }
+      Instance instance = wekaInstances[segmentNumber];
+      if (instance.dataset() != instances)
+      {
+         int n = instances.numAttributes();
+         if (wekaValues[segmentNumber].length != n)
+         {
+            wekaValues[segmentNumber]    = new double[n];
+            wekaInstances[segmentNumber] = instance = new Instance(1.0, wekaValues[segmentNumber]);
+         }
+         instance.setDataset(instances);
+         Attribute classAttribute = instances.attribute(n - 1);
+         wekaValues[segmentNumber][n - 1] = classAttribute.indexOfValue(STAY + "");
+         int[] responses = new int[classAttribute.numValues()];
+         for (int i = 0; i < responses.length; i++)
+         {
+            responses[i] = Integer.parseInt(classAttribute.value(i));
+         }
+         wekaResponses[segmentNumber] = responses;
+      }
+      flattenFeatures(morphognostic, wekaValues[segmentNumber]);
+      if ((METAMORPH_NN_INFERENCE == FLAT_NN_INFERENCE) && (mlp != null))
+      {
+         int c = mlp.classify(wekaValues[segmentNumber]);
+         if (c != -1)
+         {
+            return(wekaResponses[segmentNumber][c]);
+         }
+      }
+      return(wekaResponses[segmentNumber][(int)nn.classifyInstance(instance)]);
+   }
+
+
+   // Fraction of instances classified by flat network as by Weka network.
+   float getMetamorphMLPagreement(MultilayerPerceptron nn, MetamorphMLP mlp, Instances instances) throws Exception
+   {
+      int agree = 0;
+
+      for (int i = 0, n = instances.numInstances(); i < n; i++)
+      {
+         Instance instance = instances.instance(i);
+         if (mlp.classify(instance.toDoubleArray()) == (int)nn.classifyInstance(instance))
+         {
+            agree++;
+         }
+      }
+      return((float)agree / (float)instances.numInstances());
    }
 
 
@@ -78,6 +78,7 @@ public class WormSegmentDashboard extends JFrame
       }
       setSensors(sensorsString);
       setResponse(Worm.getResponseName(wormSegment.response));
+      wormSegment.setSectorEvents();
    }
 
 
@@ -1,7 +1,12 @@
 // Wormsim interface.
+// Simulator state is held in native instances referenced by handle.
 
 package openworm.morphognosis.wormworx;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
 public class Wormsim
 {
    static
@@ -9,31 +14,88 @@ public class Wormsim
       System.loadLibrary("wormsim_jni");
    }
 
-   // Initialize.
-   public static native void init();
+   // Create simulator instance and return handle.
+   public static native long create();
+
+   // Linear solvers for body mechanics integration.
+   public static final int DENSE_SOLVER = 0;
+   public static final int BAND_SOLVER  = 1;
+
+   // Initialize with linear solver.
+   // The analytic Jacobian replaces the difference quotient approximation.
+   public static native void init(long handle, int linearSolver, boolean analyticJacobian);
 
    // Set steering neuron synapse weights.
-   public static native void setSteeringSynapseWeights(double[] weights);
+   public static native void setSteeringSynapseWeights(long handle, double[] weights);
 
    // Step simulation with salt sensor stimulus.
-   public static native void step(double salt_stimulus);
+   public static native void step(long handle, double salt_stimulus);
+
+   // Step simulation n times, writing the body for each step into trajectory
+   // (n * body length), or null to skip recording. Throws IllegalArgumentException
+   // if n is negative or the trajectory is too short.
+   public static native void stepN(long handle, int n, double salt_stimulus, double[] trajectory);
 
    // Get neuron activations.
-   public static native void getSteeringActivations(double[] activations);
-   public static native void getDorsalMotorActivations(double[] activations);
-   public static native void getVentralMotorActivations(double[] activations);
+   public static native void getSteeringActivations(long handle, double[] activations);
+   public static native void getDorsalMotorActivations(long handle, double[] activations);
+   public static native void getVentralMotorActivations(long handle, double[] activations);
 
    // Get muscle activations.
-   public static native void getDorsalMuscleActivations(double[] activations);
-   public static native void getVentralMuscleActivations(double[] activations);
+   public static native void getDorsalMuscleActivations(long handle, double[] activations);
+   public static native void getVentralMuscleActivations(long handle, double[] activations);
 
    // Get body structure.
-   public static native void getBody(double[] body);
-   public static native void getSegmentAngles(double[] angles);
+   public static native void getBody(long handle, double[] body);
+   public static native void getSegmentAngles(long handle, double[] angles);
+
+   // Shared buffer layout (offsets in doubles).
+   // The simulator publishes into a registered buffer after init and each step.
+   public static final int SHARED_BODY                       = 0;
+   public static final int SHARED_SEGMENT_ANGLES             = SHARED_BODY + Worm.NBAR * 3;
+   public static final int SHARED_STEERING_ACTIVATIONS       = SHARED_SEGMENT_ANGLES + Worm.NUM_SEGMENTS;
+   public static final int SHARED_DORSAL_MOTOR_ACTIVATIONS   = SHARED_STEERING_ACTIVATIONS + 8;
+   public static final int SHARED_VENTRAL_MOTOR_ACTIVATIONS  = SHARED_DORSAL_MOTOR_ACTIVATIONS + Worm.NSEG;
+   public static final int SHARED_DORSAL_MUSCLE_ACTIVATIONS  = SHARED_VENTRAL_MOTOR_ACTIVATIONS + Worm.NSEG;
+   public static final int SHARED_VENTRAL_MUSCLE_ACTIVATIONS = SHARED_DORSAL_MUSCLE_ACTIVATIONS + Worm.NUM_SEGMENTS;
+   public static final int SHARED_SIZE = SHARED_VENTRAL_MUSCLE_ACTIVATIONS + Worm.NUM_SEGMENTS;
+
+   // Register direct buffer of SHARED_SIZE doubles in native order, or null to stop publishing.
+   // The simulator holds a reference to the buffer until it is replaced or the simulator is destroyed.
+   // Throws IllegalArgumentException if the buffer is not direct or is too small.
+   public static native void setSharedBuffer(long handle, ByteBuffer buffer);
+
+   // Create and register shared buffer, returning view.
+   public static DoubleBuffer createSharedBuffer(long handle)
+   {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(SHARED_SIZE * Double.BYTES);
+
+      buffer.order(ByteOrder.nativeOrder());
+      setSharedBuffer(handle, buffer);
+      return(buffer.asDoubleBuffer());
+   }
+
+
+   // Snapshot body, neuron, muscle and steering state into an opaque byte array.
+   // Steering synapse weights and SMB muscle amplifier overrides are parameters,
+   // not state: they are not captured, and restoring keeps their current values.
+   // Throws IllegalStateException if the simulator is not initialized or is terminated.
+   public static native byte[] snapshot(long handle);
+
+   // Restore state from snapshot, restarting the integrator from it.
+   // Returns false if the snapshot does not match this simulator.
+   // Throws IllegalStateException if the simulator is not initialized or is terminated.
+   public static native boolean restore(long handle, byte[] snapshot);
+
+   // Check analytic Jacobian against difference quotients, returning maximum relative error.
+   public static native double checkJacobian(long handle);
 
    // Terminate.
-   public static native void terminate();
+   public static native void terminate(long handle);
+
+   // Destroy simulator instance.
+   public static native void destroy(long handle);
 
    // Override SMB muscle amplifiers.
-   public static native void overrideSMBmuscleAmplifiers(double dorsal, double ventral);
+   public static native void overrideSMBmuscleAmplifiers(long handle, double dorsal, double ventral);
 }
@@ -0,0 +1,269 @@
+// Wormsim linear solver regression check.
+// Steps a dense reference simulator and a test simulator side by side and
+// verifies that body trajectories stay within tolerance of each other.
+// With the analytic Jacobian, it is also checked against difference quotients
+// along the test trajectory.
+
+package openworm.morphognosis.wormworx;
+
+public class WormsimSolverCheck
+{
+   // Default steps.
+   public static final int DEFAULT_STEPS = 1000;
+
+   // Default position tolerance (meters).
+   public static final double DEFAULT_POSITION_TOLERANCE = 1.0e-7;
+
+   // Default angle tolerance (radians).
+   public static final double DEFAULT_ANGLE_TOLERANCE = 1.0e-3;
+
+   // Steps per trajectory block.
+   public static final int BLOCK_STEPS = 100;
+
+   // Default Jacobian relative error tolerance.
+   public static final double DEFAULT_JACOBIAN_TOLERANCE = 1.0e-3;
+
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "  java openworm.morphognosis.wormworx.WormsimSolverCheck\n" +
+      "     [-linearSolver <dense | band> (default=band)]\n" +
+      "     [-jacobian <analytic | differenceQuotient> (default=analytic)]\n" +
+      "     [-steps <steps> (default=" + DEFAULT_STEPS + ")]\n" +
+      "     [-positionTolerance <meters> (default=" + DEFAULT_POSITION_TOLERANCE + ")]\n" +
+      "     [-angleTolerance <radians> (default=" + DEFAULT_ANGLE_TOLERANCE + ")]\n" +
+      "     [-jacobianTolerance <relative error> (default=" + DEFAULT_JACOBIAN_TOLERANCE + ")]\n" +
+      "Exit codes:\n" +
+      "  0=within tolerance\n" +
+      "  1=fail";
+
+   // Run check and return maximum position, angle and Jacobian deviations.
+   // The reference uses the same Jacobian as the test, since integrator
+   // tolerance differences are amplified by the neuron state thresholds.
+   public static double[] check(int steps, int linearSolver, boolean analyticJacobian)
+   {
+      long     reference           = Wormsim.create();
+      long     test                = Wormsim.create();
+      double[] referenceTrajectory = new double[BLOCK_STEPS * Worm.NBAR * 3];
+      double[] testTrajectory      = new double[BLOCK_STEPS * Worm.NBAR * 3];
+      double[] deviation           = new double[3];
+
+      Wormsim.init(reference, Wormsim.DENSE_SOLVER, analyticJacobian);
+      Wormsim.init(test, linearSolver, analyticJacobian);
+      Wormsim.overrideSMBmuscleAmplifiers(reference, 1.0, 1.0);
+      Wormsim.overrideSMBmuscleAmplifiers(test, 1.0, 1.0);
+      for (int step = 0; step < steps; )
+      {
+         int n = Math.min(BLOCK_STEPS, steps - step);
+         Wormsim.stepN(reference, n, 0.0, referenceTrajectory);
+         Wormsim.stepN(test, n, 0.0, testTrajectory);
+         step += n;
+         for (int i = 0, j = n * Worm.NBAR; i < j; i++)
+         {
+            for (int k = 0; k < 2; k++)
+            {
+               double d = Math.abs(referenceTrajectory[i * 3 + k] - testTrajectory[i * 3 + k]);
+               if (d > deviation[0])
+               {
+                  deviation[0] = d;
+               }
+            }
+            double d = Math.abs(referenceTrajectory[i * 3 + 2] - testTrajectory[i * 3 + 2]);
+            if (d > deviation[1])
+            {
+               deviation[1] = d;
+            }
+         }
+         // Check Jacobian at end of block.
+         if (analyticJacobian)
+         {
+            double d = Wormsim.checkJacobian(test);
+            if (d > deviation[2])
+            {
+               deviation[2] = d;
+            }
+         }
+      }
+      Wormsim.terminate(reference);
+      Wormsim.destroy(reference);
+      Wormsim.terminate(test);
+      Wormsim.destroy(test);
+      return(deviation);
+   }
+
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int     steps             = DEFAULT_STEPS;
+      int     linearSolver      = Wormsim.BAND_SOLVER;
+      boolean analyticJacobian  = true;
+      double  positionTolerance = DEFAULT_POSITION_TOLERANCE;
+      double  angleTolerance    = DEFAULT_ANGLE_TOLERANCE;
+      double  jacobianTolerance = DEFAULT_JACOBIAN_TOLERANCE;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-linearSolver"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid linearSolver option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("dense"))
+            {
+               linearSolver = Wormsim.DENSE_SOLVER;
+            }
+            else if (args[i].equals("band"))
+            {
+               linearSolver = Wormsim.BAND_SOLVER;
+            }
+            else
+            {
+               System.err.println("Invalid linearSolver option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-jacobian"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid jacobian option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("analytic"))
+            {
+               analyticJacobian = true;
+            }
+            else if (args[i].equals("differenceQuotient"))
+            {
+               analyticJacobian = false;
+            }
+            else
+            {
+               System.err.println("Invalid jacobian option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-steps"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid steps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               steps = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid steps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (steps < 0)
+            {
+               System.err.println("Invalid steps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-positionTolerance"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid positionTolerance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               positionTolerance = Double.parseDouble(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid positionTolerance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-angleTolerance"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid angleTolerance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               angleTolerance = Double.parseDouble(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid angleTolerance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-jacobianTolerance"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid jacobianTolerance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               jacobianTolerance = Double.parseDouble(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid jacobianTolerance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      long     startTime = System.currentTimeMillis();
+      double[] deviation = check(steps, linearSolver, analyticJacobian);
+      long     elapsed   = System.currentTimeMillis() - startTime;
+      System.out.println("Steps=" + steps + ", elapsed ms=" + elapsed);
+      System.out.println("Maximum position deviation=" + deviation[0] + " (tolerance=" + positionTolerance + ")");
+      System.out.println("Maximum angle deviation=" + deviation[1] + " (tolerance=" + angleTolerance + ")");
+      if (analyticJacobian)
+      {
+         System.out.println("Maximum Jacobian relative error=" + deviation[2] + " (tolerance=" + jacobianTolerance + ")");
+      }
+      if ((deviation[0] <= positionTolerance) && (deviation[1] <= angleTolerance) &&
+          (deviation[2] <= jacobianTolerance))
+      {
+         System.out.println("Pass");
+         System.exit(0);
+      }
+      else
+      {
+         System.out.println("Fail");
+         System.exit(1);
+      }
+   }
+}